@@ -0,0 +1,342 @@
+package org.randombits.facade;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A thread-safe {@link FacadeCache} which holds at most a fixed number of facades for each
+ * target class loader.
+ * <p/>
+ * Each loader's facades are kept in a segmented LRU. New facades go into a probationary
+ * segment, and are promoted to a protected segment when they are used again. When the cache
+ * is full, the least recently used probationary facade is evicted first, so facades which are
+ * only used once do not push out the ones in regular use. The entries are split into stripes
+ * by the source object's identity, each with its own lock.
+ * <p/>
+ * Source objects are compared by identity, and both they and their facades are held weakly,
+ * so the cache never keeps a facade, its source object or its class loader alive: the bound
+ * only limits how many facades in use elsewhere are remembered. Entries whose source object or
+ * facade has been reclaimed are removed the next time their stripe is written to.
+ */
+public class BoundedFacadeCache implements LoaderAwareFacadeCache {
+
+    /**
+     * The default maximum number of facades for each target class loader.
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private static final int MAXIMUM_STRIPES = 16;
+
+    /**
+     * The smallest number of entries per stripe before the entries are split further.
+     */
+    private static final int MINIMUM_STRIPE_SIZE = 64;
+
+    /**
+     * The share of each stripe reserved for protected entries, in percent.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final int maximumSize;
+
+    private final WeakIdentityMap<ClassLoader, Stripe[]> segments = new WeakIdentityMap<ClassLoader, Stripe[]>();
+
+    /**
+     * Facades for the bootstrap class loader, which is represented by <code>null</code>.
+     */
+    private volatile Stripe[] bootstrap;
+
+    /**
+     * Constructs a cache holding up to {@link #DEFAULT_MAXIMUM_SIZE} facades per target class
+     * loader.
+     */
+    public BoundedFacadeCache() {
+        this( DEFAULT_MAXIMUM_SIZE );
+    }
+
+    /**
+     * Constructs a cache holding up to the specified number of facades per target class loader.
+     *
+     * @param maximumSize The maximum number of facades for each target class loader.
+     * @throws IllegalArgumentException if the maximum size is less than 1.
+     */
+    public BoundedFacadeCache( int maximumSize ) {
+        if ( maximumSize < 1 )
+            throw new IllegalArgumentException( "The maximum size must be at least 1: " + maximumSize );
+        this.maximumSize = maximumSize;
+        bootstrap = createStripes();
+    }
+
+    /**
+     * Returns the maximum number of facades held for each target class loader.
+     *
+     * @return The maximum size.
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public <T> T get( Object sourceObject, Class<T> type ) {
+        return get( sourceObject, type, type.getClassLoader() );
+    }
+
+    public <T> void set( Object sourceObject, T facade, Class<T> targetType ) {
+        set( sourceObject, facade, targetType, targetType.getClassLoader() );
+    }
+
+    public void remove( Object sourceObject, Class<?> targetType ) {
+        remove( sourceObject, targetType, targetType.getClassLoader() );
+    }
+
+    @SuppressWarnings( {"unchecked"} )
+    public <T> T get( Object sourceObject, Class<T> type, ClassLoader targetClassLoader ) {
+        Stripe[] stripes = getStripes( targetClassLoader, false );
+        if ( stripes != null ) {
+            Object facade = stripeFor( stripes, sourceObject ).get( sourceObject );
+            if ( type.isInstance( facade ) )
+                return (T) facade;
+        }
+        return null;
+    }
+
+    public <T> void set( Object sourceObject, T facade, Class<T> targetType, ClassLoader targetClassLoader ) {
+        if ( facade == null )
+            remove( sourceObject, targetType, targetClassLoader );
+        else
+            stripeFor( getStripes( targetClassLoader, true ), sourceObject ).put( sourceObject, facade );
+    }
+
+    public void remove( Object sourceObject, Class<?> targetType, ClassLoader targetClassLoader ) {
+        Stripe[] stripes = getStripes( targetClassLoader, false );
+        if ( stripes != null )
+            stripeFor( stripes, sourceObject ).remove( sourceObject );
+    }
+
+    public void clear() {
+        segments.clear();
+        bootstrap = createStripes();
+    }
+
+    /**
+     * Returns the number of facades cached for the class loader, after removing any which have
+     * been reclaimed.
+     *
+     * @param targetClassLoader The target class loader.
+     * @return The number of cached facades.
+     */
+    public int size( ClassLoader targetClassLoader ) {
+        Stripe[] stripes = getStripes( targetClassLoader, false );
+        int size = 0;
+        if ( stripes != null ) {
+            for ( Stripe stripe : stripes )
+                size += stripe.size();
+        }
+        return size;
+    }
+
+    private Stripe[] getStripes( ClassLoader targetClassLoader, boolean create ) {
+        if ( targetClassLoader == null )
+            return bootstrap;
+
+        Stripe[] stripes = segments.get( targetClassLoader );
+        if ( stripes == null && create ) {
+            stripes = createStripes();
+            Stripe[] existing = segments.putIfAbsent( targetClassLoader, stripes );
+            if ( existing != null )
+                stripes = existing;
+        }
+        return stripes;
+    }
+
+    private Stripe[] createStripes() {
+        int count = 1;
+        while ( count < MAXIMUM_STRIPES && maximumSize / ( count * 2 ) >= MINIMUM_STRIPE_SIZE )
+            count *= 2;
+
+        Stripe[] stripes = new Stripe[count];
+        for ( int i = 0; i < count; i++ )
+            stripes[i] = new Stripe( maximumSize / count + ( i < maximumSize % count ? 1 : 0 ) );
+        return stripes;
+    }
+
+    private static Stripe stripeFor( Stripe[] stripes, Object sourceObject ) {
+        int hash = System.identityHashCode( sourceObject );
+        hash ^= hash >>> 16;
+        return stripes[hash & ( stripes.length - 1 )];
+    }
+
+    /**
+     * A segmented LRU over part of a class loader's facades.
+     */
+    private static class Stripe {
+
+        private final int maximumSize;
+
+        private final int protectedSize;
+
+        private final LinkedHashMap<Object, Entry> probation = new LinkedHashMap<Object, Entry>( 16, 0.75f, true );
+
+        private final LinkedHashMap<Object, Entry> protectedEntries = new LinkedHashMap<Object, Entry>( 16, 0.75f, true );
+
+        /**
+         * Receives both the keys and the entries once their source object or facade has been
+         * reclaimed.
+         */
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+        Stripe( int maximumSize ) {
+            this.maximumSize = maximumSize;
+            this.protectedSize = Math.max( 1, maximumSize * PROTECTED_PERCENT / 100 );
+        }
+
+        synchronized Object get( Object sourceObject ) {
+            LookupKey lookup = new LookupKey( sourceObject );
+            Entry entry = protectedEntries.get( lookup );
+            if ( entry != null ) {
+                Object facade = entry.get();
+                if ( facade == null )
+                    protectedEntries.remove( lookup );
+                return facade;
+            }
+
+            entry = probation.remove( lookup );
+            if ( entry == null )
+                return null;
+            Object facade = entry.get();
+            if ( facade != null ) {
+                // Used again, so promote it, demoting the least recently used protected entry if
+                // there is no room.
+                protectedEntries.put( entry.key, entry );
+                if ( protectedEntries.size() > protectedSize ) {
+                    Entry demoted = removeEldest( protectedEntries );
+                    probation.put( demoted.key, demoted );
+                }
+            }
+            return facade;
+        }
+
+        synchronized void put( Object sourceObject, Object facade ) {
+            purge();
+            LookupKey lookup = new LookupKey( sourceObject );
+            protectedEntries.remove( lookup );
+            probation.remove( lookup );
+
+            IdentityKey key = new IdentityKey( sourceObject, queue );
+            probation.put( key, new Entry( key, facade, queue ) );
+            while ( probation.size() + protectedEntries.size() > maximumSize )
+                removeEldest( probation.isEmpty() ? protectedEntries : probation );
+        }
+
+        synchronized void remove( Object sourceObject ) {
+            LookupKey lookup = new LookupKey( sourceObject );
+            if ( protectedEntries.remove( lookup ) == null )
+                probation.remove( lookup );
+        }
+
+        synchronized int size() {
+            purge();
+            return probation.size() + protectedEntries.size();
+        }
+
+        /**
+         * Removes the entries whose source object or facade has been reclaimed.
+         */
+        private void purge() {
+            Reference<?> reference;
+            while ( ( reference = queue.poll() ) != null ) {
+                IdentityKey key = reference instanceof Entry ? ( (Entry) reference ).key : (IdentityKey) reference;
+                // A cleared key only equals itself, so this can't remove a newer entry for
+                // another source object. The entry is checked so a replaced facade's entry
+                // doesn't remove the one which replaced it.
+                removeEntry( protectedEntries, key, reference );
+                removeEntry( probation, key, reference );
+            }
+        }
+
+        private static void removeEntry( LinkedHashMap<Object, Entry> entries, IdentityKey key,
+                                         Reference<?> reference ) {
+            Entry entry = entries.get( key );
+            if ( entry != null && ( reference == key || reference == entry ) )
+                entries.remove( key );
+        }
+
+        private static Entry removeEldest( LinkedHashMap<Object, Entry> entries ) {
+            Iterator<Entry> i = entries.values().iterator();
+            Entry eldest = i.next();
+            i.remove();
+            return eldest;
+        }
+    }
+
+    /**
+     * Weakly holds a facade, remembering the key it was stored under.
+     */
+    private static class Entry extends WeakReference<Object> {
+
+        private final IdentityKey key;
+
+        Entry( IdentityKey key, Object facade, ReferenceQueue<Object> queue ) {
+            super( facade, queue );
+            this.key = key;
+        }
+    }
+
+    /**
+     * Weakly holds a source object, comparing by identity.
+     */
+    private static class IdentityKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        IdentityKey( Object sourceObject, ReferenceQueue<Object> queue ) {
+            super( sourceObject, queue );
+            this.hash = System.identityHashCode( sourceObject );
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj )
+                return true;
+            Object sourceObject = get();
+            if ( sourceObject == null )
+                return false;
+            if ( obj instanceof IdentityKey )
+                return sourceObject == ( (IdentityKey) obj ).get();
+            return obj instanceof LookupKey && sourceObject == ( (LookupKey) obj ).sourceObject;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A short-lived key used for lookups, which avoids creating a reference.
+     */
+    private static class LookupKey {
+
+        private final Object sourceObject;
+
+        LookupKey( Object sourceObject ) {
+            this.sourceObject = sourceObject;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj )
+                return true;
+            if ( obj instanceof IdentityKey )
+                return sourceObject == ( (IdentityKey) obj ).get();
+            return obj instanceof LookupKey && sourceObject == ( (LookupKey) obj ).sourceObject;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode( sourceObject );
+        }
+    }
+}
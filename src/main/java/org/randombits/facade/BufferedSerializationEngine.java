@@ -0,0 +1,96 @@
+package org.randombits.facade;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The default {@link SerializationEngine}. Each thread reuses a single buffer for its copies,
+ * and the copy is read straight out of the buffer it was written to. Classes are resolved
+ * through the {@link FacadeAssistant}'s class cache.
+ * <p/>
+ * A copy made while another is in progress on the same thread, such as from a
+ * <code>writeObject</code> method, uses a buffer of its own.
+ */
+public class BufferedSerializationEngine implements SerializationEngine {
+
+    private static final int INITIAL_SIZE = 512;
+
+    /**
+     * Buffers which have grown beyond this are not kept for the next copy.
+     */
+    private static final int MAXIMUM_RETAINED_SIZE = 64 * 1024;
+
+    /**
+     * Holds each thread's idle buffer, or <code>null</code> while it is in use. Only a
+     * <code>byte[][]</code> is stored, so the thread does not keep this class loader alive.
+     */
+    private final ThreadLocal<byte[][]> buffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[1][];
+        }
+    };
+
+    public Object copy( Object sourceObject, ClassLoader targetClassLoader ) throws IOException, ClassNotFoundException {
+        byte[][] holder = buffers.get();
+        byte[] buffer = holder[0];
+        holder[0] = null;
+
+        BufferOutputStream bytes = new BufferOutputStream( buffer != null ? buffer : new byte[INITIAL_SIZE] );
+        try {
+            // Freeze
+            ObjectOutputStream out = new ObjectOutputStream( bytes );
+            out.writeObject( sourceObject );
+            out.close();
+
+            // Thaw
+            CustomObjectInputStream in = new CustomObjectInputStream(
+                    new ByteArrayInputStream( bytes.buffer, 0, bytes.count ), targetClassLoader );
+            Object targetObject = in.readObject();
+            in.close();
+            return targetObject;
+        } finally {
+            if ( bytes.buffer.length <= MAXIMUM_RETAINED_SIZE )
+                holder[0] = bytes.buffer;
+            else if ( buffer != null )
+                holder[0] = buffer;
+        }
+    }
+
+    /**
+     * Writes into a growable array which can be read without copying.
+     */
+    private static class BufferOutputStream extends OutputStream {
+
+        private byte[] buffer;
+
+        private int count;
+
+        BufferOutputStream( byte[] buffer ) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write( int b ) {
+            ensureCapacity( count + 1 );
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) {
+            ensureCapacity( count + len );
+            System.arraycopy( b, off, buffer, count, len );
+            count += len;
+        }
+
+        private void ensureCapacity( int capacity ) {
+            if ( capacity > buffer.length ) {
+                byte[] grown = new byte[Math.max( buffer.length * 2, capacity )];
+                System.arraycopy( buffer, 0, grown, 0, count );
+                buffer = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.randombits.facade;
+
+/**
+ * Lazily computes and caches a value for each class, like a {@link ClassValue}, without ever
+ * storing anything from this copy of the library on a class from another class loader.
+ * <p/>
+ * A value is only stored against its class when the class's loader is this library's loader,
+ * or has it as an ancestor, since the class already keeps the library reachable then. Values
+ * for any other class are held by the cache itself, keyed weakly by class, so that a host
+ * class cannot keep a plugin's copy of the library, and the plugin's class loader, alive.
+ * As with {@link WeakIdentityMap}, a value held this way which refers to its own class keeps
+ * that class alive for as long as the cache is.
+ *
+ * @param <T> The value type.
+ */
+abstract class ClassCache<T> {
+
+    private static final ClassLoader LIBRARY_LOADER = ClassCache.class.getClassLoader();
+
+    private final ClassValue<T> local = new ClassValue<T>() {
+        @Override
+        protected T computeValue( Class<?> type ) {
+            return ClassCache.this.computeValue( type );
+        }
+    };
+
+    private final WeakIdentityMap<Class<?>, T> foreign = new WeakIdentityMap<Class<?>, T>();
+
+    /**
+     * Computes the value for the class.
+     *
+     * @param type The class.
+     * @return The value, which must not be <code>null</code>.
+     */
+    protected abstract T computeValue( Class<?> type );
+
+    /**
+     * Returns the value for the class, computing it the first time.
+     *
+     * @param type The class.
+     * @return The value.
+     */
+    public T get( Class<?> type ) {
+        if ( isLocal( type.getClassLoader() ) )
+            return local.get( type );
+
+        T value = foreign.get( type );
+        if ( value == null ) {
+            value = computeValue( type );
+            T existing = foreign.putIfAbsent( type, value );
+            if ( existing != null )
+                value = existing;
+        }
+        return value;
+    }
+
+    /**
+     * Checks if classes from the loader already keep this copy of the library reachable.
+     *
+     * @param loader The class loader.
+     * @return <code>true</code> if the loader is, or delegates to, the library's loader.
+     */
+    static boolean isLocal( ClassLoader loader ) {
+        if ( LIBRARY_LOADER == null )
+            return true;
+        try {
+            for ( ClassLoader current = loader; current != null; current = current.getParent() ) {
+                if ( current == LIBRARY_LOADER )
+                    return true;
+            }
+        } catch ( SecurityException e ) {
+            // Not allowed to walk the hierarchy, so assume the worst.
+        }
+        return false;
+    }
+}
@@ -0,0 +1,449 @@
+package org.randombits.facade;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal class file writer, supporting just enough of the format to generate the
+ * straight-line forwarding classes produced by {@link FacadeClassGenerator}. Methods
+ * may not contain branches, so no stack map frames are written.
+ */
+class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+
+    static final int ACC_PRIVATE = 0x0002;
+
+    static final int ACC_STATIC = 0x0008;
+
+    static final int ACC_FINAL = 0x0010;
+
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACC_SYNTHETIC = 0x1000;
+
+    static final int ALOAD_0 = 0x2a;
+
+    static final int ASTORE_0 = 0x4b;
+
+    static final int AALOAD = 0x32;
+
+    static final int ILOAD = 0x15;
+
+    static final int LLOAD = 0x16;
+
+    static final int FLOAD = 0x17;
+
+    static final int DLOAD = 0x18;
+
+    static final int ALOAD = 0x19;
+
+    static final int IRETURN = 0xac;
+
+    static final int LRETURN = 0xad;
+
+    static final int FRETURN = 0xae;
+
+    static final int DRETURN = 0xaf;
+
+    static final int ARETURN = 0xb0;
+
+    static final int RETURN = 0xb1;
+
+    static final int GETSTATIC = 0xb2;
+
+    static final int PUTSTATIC = 0xb3;
+
+    static final int GETFIELD = 0xb4;
+
+    static final int PUTFIELD = 0xb5;
+
+    static final int INVOKEVIRTUAL = 0xb6;
+
+    static final int INVOKESPECIAL = 0xb7;
+
+    static final int INVOKESTATIC = 0xb8;
+
+    static final int CHECKCAST = 0xc0;
+
+    private static final int VERSION = 52;
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final int CONSTANT_CLASS = 7;
+
+    private static final int CONSTANT_STRING = 8;
+
+    private static final int CONSTANT_FIELDREF = 9;
+
+    private static final int CONSTANT_METHODREF = 10;
+
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream pool = new DataOutputStream( poolBytes );
+
+    private final Map<String, Integer> constants = new HashMap<String, Integer>();
+
+    private int constantCount = 1;
+
+    private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream fields = new DataOutputStream( fieldBytes );
+
+    private int fieldCount;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream methods = new DataOutputStream( methodBytes );
+
+    private int methodCount;
+
+    private final int thisClass;
+
+    private final int superClass;
+
+    private final int[] interfaces;
+
+    private final int access;
+
+    /**
+     * Constructs a new writer.
+     *
+     * @param access     The class access flags.
+     * @param name       The internal name of the class.
+     * @param superName  The internal name of the superclass.
+     * @param interfaces The internal names of the implemented interfaces.
+     */
+    ClassFileWriter( int access, String name, String superName, List<String> interfaces ) {
+        this.access = access;
+        thisClass = classConstant( name );
+        superClass = classConstant( superName );
+        this.interfaces = new int[interfaces.size()];
+        for ( int i = 0; i < this.interfaces.length; i++ )
+            this.interfaces[i] = classConstant( interfaces.get( i ) );
+    }
+
+    /**
+     * Returns the internal name for the specified class.
+     *
+     * @param type The class.
+     * @return The internal name.
+     */
+    static String internalName( Class<?> type ) {
+        return type.getName().replace( '.', '/' );
+    }
+
+    /**
+     * Returns the descriptor for the specified type.
+     *
+     * @param type The type.
+     * @return The type descriptor.
+     */
+    static String descriptor( Class<?> type ) {
+        if ( type.isPrimitive() ) {
+            if ( type == Integer.TYPE ) return "I";
+            if ( type == Long.TYPE ) return "J";
+            if ( type == Boolean.TYPE ) return "Z";
+            if ( type == Byte.TYPE ) return "B";
+            if ( type == Character.TYPE ) return "C";
+            if ( type == Short.TYPE ) return "S";
+            if ( type == Float.TYPE ) return "F";
+            if ( type == Double.TYPE ) return "D";
+            return "V";
+        }
+        if ( type.isArray() )
+            return internalName( type );
+        return "L" + internalName( type ) + ";";
+    }
+
+    /**
+     * Returns the method descriptor for the specified parameter and return types.
+     *
+     * @param returnType     The return type.
+     * @param parameterTypes The parameter types.
+     * @return The method descriptor.
+     */
+    static String descriptor( Class<?> returnType, Class<?>... parameterTypes ) {
+        StringBuilder out = new StringBuilder( "(" );
+        for ( Class<?> parameterType : parameterTypes )
+            out.append( descriptor( parameterType ) );
+        return out.append( ")" ).append( descriptor( returnType ) ).toString();
+    }
+
+    /**
+     * Returns the number of local variable slots taken by a value of the specified type.
+     *
+     * @param type The type.
+     * @return The slot count.
+     */
+    static int slots( Class<?> type ) {
+        return type == Long.TYPE || type == Double.TYPE ? 2 : type == Void.TYPE ? 0 : 1;
+    }
+
+    /**
+     * Returns the opcode which loads a local variable of the specified type.
+     *
+     * @param type The type.
+     * @return The load opcode.
+     */
+    static int loadOpcode( Class<?> type ) {
+        if ( !type.isPrimitive() ) return ALOAD;
+        if ( type == Long.TYPE ) return LLOAD;
+        if ( type == Float.TYPE ) return FLOAD;
+        if ( type == Double.TYPE ) return DLOAD;
+        return ILOAD;
+    }
+
+    /**
+     * Returns the opcode which returns a value of the specified type.
+     *
+     * @param type The type.
+     * @return The return opcode.
+     */
+    static int returnOpcode( Class<?> type ) {
+        if ( !type.isPrimitive() ) return ARETURN;
+        if ( type == Void.TYPE ) return RETURN;
+        if ( type == Long.TYPE ) return LRETURN;
+        if ( type == Float.TYPE ) return FRETURN;
+        if ( type == Double.TYPE ) return DRETURN;
+        return IRETURN;
+    }
+
+    private int constant( String key, int tag, int a, int b, String utf ) {
+        Integer index = constants.get( key );
+        if ( index == null ) {
+            try {
+                pool.writeByte( tag );
+                if ( utf != null ) {
+                    pool.writeUTF( utf );
+                } else {
+                    pool.writeShort( a );
+                    if ( b >= 0 )
+                        pool.writeShort( b );
+                }
+            } catch ( IOException e ) {
+                throw new FacadeException( e );
+            }
+            index = constantCount++;
+            constants.put( key, index );
+        }
+        return index;
+    }
+
+    int utf8Constant( String value ) {
+        return constant( "U" + value, CONSTANT_UTF8, 0, 0, value );
+    }
+
+    int classConstant( String internalName ) {
+        int name = utf8Constant( internalName );
+        return constant( "C" + internalName, CONSTANT_CLASS, name, -1, null );
+    }
+
+    int stringConstant( String value ) {
+        int utf = utf8Constant( value );
+        return constant( "S" + value, CONSTANT_STRING, utf, -1, null );
+    }
+
+    private int nameAndType( String name, String descriptor ) {
+        int n = utf8Constant( name );
+        int d = utf8Constant( descriptor );
+        return constant( "N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, n, d, null );
+    }
+
+    int fieldConstant( String owner, String name, String descriptor ) {
+        int c = classConstant( owner );
+        int nt = nameAndType( name, descriptor );
+        return constant( "F" + owner + "." + name + ":" + descriptor, CONSTANT_FIELDREF, c, nt, null );
+    }
+
+    int methodConstant( String owner, String name, String descriptor ) {
+        int c = classConstant( owner );
+        int nt = nameAndType( name, descriptor );
+        return constant( "M" + owner + "." + name + ":" + descriptor, CONSTANT_METHODREF, c, nt, null );
+    }
+
+    /**
+     * Adds a field to the class.
+     *
+     * @param access     The access flags.
+     * @param name       The field name.
+     * @param descriptor The field descriptor.
+     */
+    void addField( int access, String name, String descriptor ) {
+        try {
+            fields.writeShort( access );
+            fields.writeShort( utf8Constant( name ) );
+            fields.writeShort( utf8Constant( descriptor ) );
+            fields.writeShort( 0 );
+            fieldCount++;
+        } catch ( IOException e ) {
+            throw new FacadeException( e );
+        }
+    }
+
+    /**
+     * Adds a method to the class.
+     *
+     * @param access     The access flags.
+     * @param name       The method name.
+     * @param descriptor The method descriptor.
+     * @param code       The method body.
+     */
+    void addMethod( int access, String name, String descriptor, Code code ) {
+        try {
+            methods.writeShort( access );
+            methods.writeShort( utf8Constant( name ) );
+            methods.writeShort( utf8Constant( descriptor ) );
+            methods.writeShort( 1 );
+
+            byte[] bytecode = code.toByteArray();
+            methods.writeShort( utf8Constant( "Code" ) );
+            methods.writeInt( 12 + bytecode.length );
+            methods.writeShort( code.maxStack );
+            methods.writeShort( code.maxLocals );
+            methods.writeInt( bytecode.length );
+            methods.write( bytecode );
+            methods.writeShort( 0 ); // exception table
+            methods.writeShort( 0 ); // attributes
+            methodCount++;
+        } catch ( IOException e ) {
+            throw new FacadeException( e );
+        }
+    }
+
+    /**
+     * Returns the completed class file.
+     *
+     * @return The class file bytes.
+     */
+    byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeInt( 0xCAFEBABE );
+            out.writeShort( 0 );
+            out.writeShort( VERSION );
+            out.writeShort( constantCount );
+            poolBytes.writeTo( out );
+            out.writeShort( access );
+            out.writeShort( thisClass );
+            out.writeShort( superClass );
+            out.writeShort( interfaces.length );
+            for ( int anInterface : interfaces )
+                out.writeShort( anInterface );
+            out.writeShort( fieldCount );
+            fieldBytes.writeTo( out );
+            out.writeShort( methodCount );
+            methodBytes.writeTo( out );
+            out.writeShort( 0 ); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch ( IOException e ) {
+            throw new FacadeException( e );
+        }
+    }
+
+    /**
+     * The body of a method. Tracks the operand stack depth as instructions are added.
+     */
+    static class Code {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private int stack;
+
+        private int maxStack;
+
+        private int maxLocals;
+
+        Code( int maxLocals ) {
+            this.maxLocals = maxLocals;
+        }
+
+        private void adjust( int delta ) {
+            stack += delta;
+            if ( stack > maxStack )
+                maxStack = stack;
+        }
+
+        /**
+         * Adds a single byte instruction.
+         *
+         * @param opcode The opcode.
+         * @param delta  The change in stack depth.
+         * @return This code.
+         */
+        Code op( int opcode, int delta ) {
+            bytes.write( opcode );
+            adjust( delta );
+            return this;
+        }
+
+        /**
+         * Adds an instruction with an unsigned byte operand, such as a local variable load.
+         *
+         * @param opcode  The opcode.
+         * @param operand The operand.
+         * @param delta   The change in stack depth.
+         * @return This code.
+         */
+        Code op1( int opcode, int operand, int delta ) {
+            bytes.write( opcode );
+            bytes.write( operand );
+            adjust( delta );
+            return this;
+        }
+
+        /**
+         * Adds an instruction with a two byte operand, such as a constant pool index.
+         *
+         * @param opcode  The opcode.
+         * @param operand The operand.
+         * @param delta   The change in stack depth.
+         * @return This code.
+         */
+        Code op2( int opcode, int operand, int delta ) {
+            bytes.write( opcode );
+            bytes.write( operand >> 8 );
+            bytes.write( operand );
+            adjust( delta );
+            return this;
+        }
+
+        /**
+         * Pushes an integer constant.
+         *
+         * @param value The value.
+         * @return This code.
+         */
+        Code push( int value ) {
+            if ( value >= -1 && value <= 5 )
+                return op( 0x03 + value, 1 ); // iconst_<n>
+            if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE )
+                return op1( 0x10, value & 0xff, 1 ); // bipush
+            return op2( 0x11, value & 0xffff, 1 ); // sipush
+        }
+
+        /**
+         * Loads a constant pool entry.
+         *
+         * @param index The constant pool index.
+         * @return This code.
+         */
+        Code ldc( int index ) {
+            if ( index < 256 )
+                return op1( 0x12, index, 1 );
+            return op2( 0x13, index, 1 ); // ldc_w
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.randombits.facade;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves class names against class loaders, remembering both the classes found and the
+ * names which could not be found. Each loader's results are held only as long as the
+ * loader itself, and the classes are held weakly, so the cache never keeps a loader alive.
+ */
+class ClassResolver {
+
+    /**
+     * Marks a name which the loader could not resolve.
+     */
+    private static final Object MISSING = new Object();
+
+    private final WeakIdentityMap<ClassLoader, ConcurrentMap<String, Object>> loaders
+            = new WeakIdentityMap<ClassLoader, ConcurrentMap<String, Object>>();
+
+    /**
+     * Results for the bootstrap class loader, which is represented by <code>null</code>.
+     */
+    private final ConcurrentMap<String, Object> bootstrap = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Resolves the class name in the loader.
+     *
+     * @param name       The class name.
+     * @param loader     The class loader, or <code>null</code> for the bootstrap loader.
+     * @param initialize If <code>true</code>, a newly resolved class is initialized. Classes
+     *                   which have already been resolved are returned as they are.
+     * @return The class, or <code>null</code> if the loader cannot find it.
+     */
+    public Class<?> resolve( String name, ClassLoader loader, boolean initialize ) {
+        ConcurrentMap<String, Object> results = getResults( loader );
+        Object result = results.get( name );
+        if ( result == MISSING )
+            return null;
+        if ( result != null ) {
+            // The reference is only cleared once the class has been unloaded.
+            Class<?> type = (Class<?>) ( (Reference<?>) result ).get();
+            if ( type != null )
+                return type;
+        }
+
+        Class<?> type;
+        try {
+            type = Class.forName( name, initialize, loader );
+        } catch ( ClassNotFoundException e ) {
+            results.put( name, MISSING );
+            return null;
+        }
+        results.put( name, new WeakReference<Class<?>>( type ) );
+        return type;
+    }
+
+    /**
+     * Forgets everything resolved so far, including the names which could not be found.
+     */
+    public void clear() {
+        loaders.clear();
+        bootstrap.clear();
+    }
+
+    private ConcurrentMap<String, Object> getResults( ClassLoader loader ) {
+        if ( loader == null )
+            return bootstrap;
+
+        ConcurrentMap<String, Object> results = loaders.get( loader );
+        if ( results == null ) {
+            results = new ConcurrentHashMap<String, Object>();
+            ConcurrentMap<String, Object> existing = loaders.putIfAbsent( loader, results );
+            if ( existing != null )
+                results = existing;
+        }
+        return results;
+    }
+}
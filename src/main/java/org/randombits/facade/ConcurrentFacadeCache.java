@@ -0,0 +1,231 @@
+package org.randombits.facade;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe {@link FacadeCache}, and the default cache for the {@link FacadeAssistant}.
+ * <p/>
+ * Facades are filed under the class loader they were created for. Source objects are
+ * compared by identity, so looking up a facade never calls the source object's
+ * <code>equals</code> or <code>hashCode</code> methods. Both the source objects and the
+ * facades are held weakly, so a facade stays cached for as long as it is in use and the
+ * cache never keeps a source object, a facade or a class loader alive. Lookups take no locks.
+ * <p/>
+ * Entries whose source object or facade has been collected are removed the next time any
+ * instance caches a facade or is asked for its size, as with {@link WeakIdentityMap}. There is
+ * no cleaner thread, which could keep this library's class loader, or the state it inherited
+ * from the thread which started it, alive.
+ */
+public class ConcurrentFacadeCache implements LoaderAwareFacadeCache {
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+
+    private final WeakIdentityMap<ClassLoader, Segment> segments = new WeakIdentityMap<ClassLoader, Segment>();
+
+    /**
+     * Facades for the bootstrap class loader, which is represented by <code>null</code>.
+     */
+    private final Segment bootstrap = new Segment();
+
+    public ConcurrentFacadeCache() {}
+
+    public <T> T get( Object sourceObject, Class<T> type ) {
+        return get( sourceObject, type, type.getClassLoader() );
+    }
+
+    public <T> void set( Object sourceObject, T facade, Class<T> targetType ) {
+        set( sourceObject, facade, targetType, targetType.getClassLoader() );
+    }
+
+    public void remove( Object sourceObject, Class<?> targetType ) {
+        remove( sourceObject, targetType, targetType.getClassLoader() );
+    }
+
+    @SuppressWarnings( {"unchecked"} )
+    public <T> T get( Object sourceObject, Class<T> type, ClassLoader targetClassLoader ) {
+        Segment segment = getSegment( targetClassLoader, false );
+        if ( segment != null ) {
+            Object facade = segment.get( sourceObject );
+            if ( type.isInstance( facade ) )
+                return (T) facade;
+        }
+        return null;
+    }
+
+    public <T> void set( Object sourceObject, T facade, Class<T> targetType, ClassLoader targetClassLoader ) {
+        if ( facade == null ) {
+            remove( sourceObject, targetType, targetClassLoader );
+        } else {
+            expungeCollected();
+            getSegment( targetClassLoader, true ).put( sourceObject, facade );
+        }
+    }
+
+    public void remove( Object sourceObject, Class<?> targetType, ClassLoader targetClassLoader ) {
+        Segment segment = getSegment( targetClassLoader, false );
+        if ( segment != null )
+            segment.remove( sourceObject );
+    }
+
+    public void clear() {
+        segments.clear();
+        bootstrap.clear();
+    }
+
+    /**
+     * Returns the number of facades cached for the class loader, including any which have been
+     * collected but not yet removed.
+     *
+     * @param targetClassLoader The target class loader.
+     * @return The number of cached facades.
+     */
+    public int size( ClassLoader targetClassLoader ) {
+        expungeCollected();
+        Segment segment = getSegment( targetClassLoader, false );
+        return segment != null ? segment.size() : 0;
+    }
+
+    private Segment getSegment( ClassLoader targetClassLoader, boolean create ) {
+        if ( targetClassLoader == null )
+            return bootstrap;
+
+        Segment segment = segments.get( targetClassLoader );
+        if ( segment == null && create ) {
+            segment = new Segment();
+            Segment existing = segments.putIfAbsent( targetClassLoader, segment );
+            if ( existing != null )
+                segment = existing;
+        }
+        return segment;
+    }
+
+    /**
+     * Removes the entries of every instance whose source object or facade has been collected.
+     */
+    private static void expungeCollected() {
+        Reference<?> ref;
+        while ( ( ref = QUEUE.poll() ) != null )
+            expunge( ref );
+    }
+
+    private static void expunge( Reference<?> ref ) {
+        if ( ref instanceof SourceKey ) {
+            SourceKey key = (SourceKey) ref;
+            key.segment.map.remove( key );
+        } else if ( ref instanceof FacadeRef ) {
+            FacadeRef facadeRef = (FacadeRef) ref;
+            facadeRef.key.segment.map.remove( facadeRef.key, facadeRef );
+        }
+    }
+
+    /**
+     * The facades for a single target class loader.
+     */
+    private static class Segment {
+
+        private final ConcurrentMap<Object, FacadeRef> map = new ConcurrentHashMap<Object, FacadeRef>();
+
+        Object get( Object sourceObject ) {
+            FacadeRef ref = map.get( new LookupKey( sourceObject ) );
+            if ( ref == null )
+                return null;
+            Object facade = ref.get();
+            if ( facade == null )
+                map.remove( ref.key, ref );
+            return facade;
+        }
+
+        void put( Object sourceObject, Object facade ) {
+            SourceKey key = new SourceKey( sourceObject, this );
+            map.put( key, new FacadeRef( facade, key ) );
+        }
+
+        void remove( Object sourceObject ) {
+            map.remove( new LookupKey( sourceObject ) );
+        }
+
+        int size() {
+            return map.size();
+        }
+
+        void clear() {
+            map.clear();
+        }
+    }
+
+    /**
+     * Weakly holds a source object, comparing by identity.
+     */
+    private static class SourceKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        private final Segment segment;
+
+        SourceKey( Object sourceObject, Segment segment ) {
+            super( sourceObject, QUEUE );
+            this.hash = System.identityHashCode( sourceObject );
+            this.segment = segment;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj )
+                return true;
+            Object sourceObject = get();
+            if ( sourceObject == null )
+                return false;
+            if ( obj instanceof SourceKey )
+                return sourceObject == ( (SourceKey) obj ).get();
+            return obj instanceof LookupKey && sourceObject == ( (LookupKey) obj ).sourceObject;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A short-lived key used for lookups, which avoids creating a reference.
+     */
+    private static class LookupKey {
+
+        private final Object sourceObject;
+
+        LookupKey( Object sourceObject ) {
+            this.sourceObject = sourceObject;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj )
+                return true;
+            if ( obj instanceof SourceKey )
+                return sourceObject == ( (SourceKey) obj ).get();
+            return obj instanceof LookupKey && sourceObject == ( (LookupKey) obj ).sourceObject;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode( sourceObject );
+        }
+    }
+
+    /**
+     * Weakly holds a facade, remembering the key it was stored under.
+     */
+    private static class FacadeRef extends WeakReference<Object> {
+
+        private final SourceKey key;
+
+        FacadeRef( Object facade, SourceKey key ) {
+            super( facade, QUEUE );
+            this.key = key;
+        }
+    }
+}
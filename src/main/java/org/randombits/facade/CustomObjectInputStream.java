@@ -41,7 +41,7 @@ public class CustomObjectInputStream extends ObjectInputStream {
         Class<?> theClass = null;
 
         try {
-            theClass = Class.forName( osc.getName(), true, classLoader );
+            theClass = FacadeAssistant.getInstance().findClass( osc.getName(), classLoader );
         } catch ( Exception e ) {
             // Do nothing, just return null.
         }
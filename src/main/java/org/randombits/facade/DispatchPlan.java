@@ -0,0 +1,494 @@
+package org.randombits.facade;
+
+import org.apache.log4j.Logger;
+import org.randombits.facade.FacadeAssistant.FacadeInfo;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * The precompiled dispatch decisions for a single facade method against a specific
+ * wrapped class. Plans are resolved once by the {@link FacadeInvocationHandler} and then
+ * reused, so a steady-state call does no class lookups or reflective method searches.
+ */
+class DispatchPlan {
+
+    /**
+     * The value is passed through unmodified.
+     */
+    static final int PASS = 0;
+
+    /**
+     * The value is converted with {@link FacadeAssistant#prepareObject(Object, Class, ClassLoader, boolean, Class)}.
+     */
+    static final int CONVERT = 1;
+
+    private static final Logger LOG = Logger.getLogger( DispatchPlan.class );
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodHandle TO_WRAPPED;
+
+    private static final MethodHandle TO_WRAPPER;
+
+    private static final MethodHandle ARRAY_TYPE_OF;
+
+    private static final MethodHandle THROW_TRANSLATED;
+
+    static {
+        try {
+            TO_WRAPPED = LOOKUP.findVirtual( DispatchPlan.class, "toWrapped",
+                    MethodType.methodType( Object.class, Object.class, int.class ) );
+            TO_WRAPPER = LOOKUP.findVirtual( DispatchPlan.class, "toWrapper",
+                    MethodType.methodType( Object.class, Object.class, Class.class ) );
+            ARRAY_TYPE_OF = LOOKUP.findVirtual( DispatchPlan.class, "arrayTypeOf",
+                    MethodType.methodType( Class.class, Object.class ) );
+            THROW_TRANSLATED = LOOKUP.findVirtual( DispatchPlan.class, "throwTranslated",
+                    MethodType.methodType( Object.class, Throwable.class ) );
+        } catch ( NoSuchMethodException e ) {
+            throw new ExceptionInInitializerError( e );
+        } catch ( IllegalAccessException e ) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    private final Method method;
+
+    private final Method targetMethod;
+
+    private final ClassLoader wrappedLoader;
+
+    private final ClassLoader wrapperLoader;
+
+    private final int[] parameterModes;
+
+    private final Class<?>[] parameterTypes;
+
+    private final boolean[] parameterFacadable;
+
+    private final int returnMode;
+
+    private final Class<?> returnType;
+
+    private final boolean returnFacadable;
+
+    /**
+     * <code>true</code> if the return type is {@link CompletableFuture}, {@link CompletionStage}
+     * or {@link Future}, so a returned stage is converted when it completes.
+     */
+    private final boolean returnFuture;
+
+    /**
+     * The array type a returned future is declared to complete with, for the facade, or
+     * <code>null</code> if it is not declared as an array class.
+     */
+    private final Class<?> futureArrayType;
+
+    private final int arrayTypeParameter;
+
+    private volatile MethodInvoker invoker;
+
+    private volatile MethodHandle typedHandle;
+
+    private volatile boolean typedHandleUnavailable;
+
+    /**
+     * Constructs a new plan.
+     *
+     * @param method        The method being invoked on the facade.
+     * @param targetMethod  The equivalent method on the wrapped object.
+     * @param info          The facade info for the target method.
+     * @param wrappedLoader The class loader of the wrapped object.
+     * @param wrapperLoader The class loader of the facade.
+     */
+    DispatchPlan( Method method, Method targetMethod, FacadeInfo info, ClassLoader wrappedLoader,
+                  ClassLoader wrapperLoader ) {
+        FacadeAssistant assistant = FacadeAssistant.getInstance();
+
+        this.method = method;
+        this.targetMethod = targetMethod;
+        this.wrappedLoader = wrappedLoader;
+        this.wrapperLoader = wrapperLoader;
+
+        Class<?>[] types = method.getParameterTypes();
+        parameterModes = new int[types.length];
+        parameterTypes = new Class<?>[types.length];
+        parameterFacadable = new boolean[types.length];
+        for ( int i = 0; i < types.length; i++ ) {
+            parameterFacadable[i] = info.isParameterFacadable( i );
+            parameterTypes[i] = assistant.findClass( types[i], wrappedLoader );
+            parameterModes[i] = !parameterFacadable[i] && isFinalShared( types[i], wrappedLoader ) ? PASS : CONVERT;
+        }
+
+        arrayTypeParameter = info.getArrayTypeParameter();
+        returnFacadable = info.isReturnFacadable();
+        returnType = assistant.findClass( targetMethod.getReturnType(), wrapperLoader );
+        if ( targetMethod.getReturnType() == Void.TYPE || ( !returnFacadable && arrayTypeParameter == -1
+                && isFinalShared( targetMethod.getReturnType(), wrapperLoader ) ) )
+            returnMode = PASS;
+        else
+            returnMode = CONVERT;
+        returnFuture = returnType == CompletableFuture.class || returnType == CompletionStage.class
+                || returnType == Future.class;
+        futureArrayType = returnFuture ? findFutureArrayType( targetMethod, wrapperLoader ) : null;
+    }
+
+    private static Class<?> findFutureArrayType( Method targetMethod, ClassLoader wrapperLoader ) {
+        Type type = targetMethod.getGenericReturnType();
+        if ( type instanceof ParameterizedType ) {
+            Type valueType = ( (ParameterizedType) type ).getActualTypeArguments()[0];
+            if ( valueType instanceof Class && ( (Class<?>) valueType ).isArray() )
+                return FacadeAssistant.getInstance().findClass( (Class<?>) valueType, wrapperLoader );
+        }
+        return null;
+    }
+
+    /**
+     * Checks if every instance of the type is guaranteed to be shared with the specified
+     * class loader, and so never needs converting. This is true for primitives, and for final
+     * classes (or arrays of them) which resolve to the same class in the target class loader.
+     * {@link Class} is final and shared, but each class passed is resolved in the target class
+     * loader, so it is never included.
+     *
+     * @param type              The declared type.
+     * @param targetClassLoader The class loader the value is passed to.
+     * @return <code>true</code> if values of the type can always be passed through.
+     */
+    private static boolean isFinalShared( Class<?> type, ClassLoader targetClassLoader ) {
+        if ( type.isPrimitive() )
+            return true;
+        if ( type.isArray() )
+            return isFinalShared( type.getComponentType(), targetClassLoader );
+        return type != Class.class && Modifier.isFinal( type.getModifiers() )
+                && FacadeAssistant.getInstance().findClass( type, targetClassLoader ) == type;
+    }
+
+    public Method getTargetMethod() {
+        return targetMethod;
+    }
+
+    public int getArrayTypeParameter() {
+        return arrayTypeParameter;
+    }
+
+    /**
+     * Invokes the target method on the wrapped object, using the currently configured
+     * {@link InvocationEngine}.
+     *
+     * @param target The wrapped object.
+     * @param args   The arguments passed to the facade.
+     * @return The return value, prepared for the facade's class loader.
+     * @throws Throwable the exception thrown by the target method, translated for the facade's
+     *                   class loader.
+     */
+    public Object invoke( Object target, Object[] args ) throws Throwable {
+        InvocationEngine engine = FacadeAssistant.getInstance().getInvocationEngine();
+        MethodInvoker current = invoker;
+        if ( current == null || current.getEngine() != engine ) {
+            current = createInvoker( engine );
+            invoker = current;
+        }
+        return current.invoke( target, args );
+    }
+
+    private MethodInvoker createInvoker( InvocationEngine engine ) {
+        if ( engine == InvocationEngine.METHOD_HANDLES ) {
+            MethodHandle handle = getTypedHandle();
+            if ( handle != null ) {
+                int count = handle.type().parameterCount() - 1;
+                handle = handle.asType( MethodType.genericMethodType( count + 1 ) )
+                        .asSpreader( Object[].class, count );
+                return new MethodInvoker.MethodHandleInvoker( engine, handle );
+            }
+        }
+        return new MethodInvoker.ReflectionInvoker( engine, this );
+    }
+
+    /**
+     * Returns a method handle which invokes the target method with all argument, return value
+     * and exception conversions applied. The handle takes the wrapped object followed by the
+     * facade method's parameters, with reference types erased to {@link Object}, and returns
+     * the facade method's return type, similarly erased. If the target method cannot be
+     * accessed via a method handle, <code>null</code> is returned.
+     *
+     * @return The handle, or <code>null</code>.
+     */
+    public MethodHandle getTypedHandle() {
+        MethodHandle handle = typedHandle;
+        if ( handle == null && !typedHandleUnavailable ) {
+            try {
+                handle = createTypedHandle();
+                typedHandle = handle;
+            } catch ( IllegalAccessException e ) {
+                LOG.debug( "Unable to access " + targetMethod + " via a method handle: " + e.getMessage() );
+            }
+            typedHandleUnavailable = handle == null;
+        }
+        return handle;
+    }
+
+    private MethodHandle createTypedHandle() throws IllegalAccessException {
+        Class<?>[] facadeTypes = method.getParameterTypes();
+        if ( Modifier.isStatic( targetMethod.getModifiers() ) || arrayTypeParameter >= facadeTypes.length )
+            return null;
+
+        MethodHandle handle = LOOKUP.unreflect( targetMethod );
+
+        // Translate exceptions thrown by the target itself, before any conversions are added.
+        MethodHandle thrower = THROW_TRANSLATED.bindTo( this )
+                .asType( MethodType.methodType( handle.type().returnType(), Throwable.class ) );
+        handle = MethodHandles.catchException( handle, Throwable.class,
+                MethodHandles.dropArguments( thrower, 1, handle.type().parameterList() ) );
+        handle = handle.asType( handle.type().changeParameterType( 0, Object.class ) );
+
+        // Bind the argument conversions.
+        for ( int i = 0; i < parameterModes.length; i++ ) {
+            if ( parameterModes[i] == CONVERT ) {
+                MethodHandle filter = MethodHandles.insertArguments( TO_WRAPPED.bindTo( this ), 1, i )
+                        .asType( MethodType.methodType( handle.type().parameterType( i + 1 ), Object.class ) );
+                handle = MethodHandles.filterArguments( handle, i + 1, filter );
+            }
+        }
+
+        MethodType typedType = MethodType.methodType( erase( method.getReturnType() ), erase( facadeTypes ) )
+                .insertParameterTypes( 0, Object.class );
+
+        // Bind the return value conversion.
+        if ( returnMode == CONVERT ) {
+            handle = handle.asType( typedType.changeReturnType( Object.class ) );
+            if ( arrayTypeParameter == -1 ) {
+                handle = MethodHandles.filterReturnValue( handle,
+                        MethodHandles.insertArguments( TO_WRAPPER.bindTo( this ), 1, (Object) null ) );
+            } else {
+                // The array type is determined from the original, unconverted argument.
+                MethodHandle converter = MethodHandles.filterArguments( TO_WRAPPER.bindTo( this ), 1,
+                        ARRAY_TYPE_OF.bindTo( this ) )
+                        .asType( MethodType.methodType( Object.class, Object.class,
+                                typedType.parameterType( arrayTypeParameter + 1 ) ) );
+                converter = MethodHandles.permuteArguments( converter,
+                        handle.type().insertParameterTypes( 0, Object.class ), 0, arrayTypeParameter + 2 );
+                handle = MethodHandles.foldArguments( converter, handle );
+            }
+        }
+
+        return handle.asType( typedType );
+    }
+
+    private static Class<?> erase( Class<?> type ) {
+        return type.isPrimitive() ? type : Object.class;
+    }
+
+    private static Class<?>[] erase( Class<?>[] types ) {
+        Class<?>[] erased = new Class<?>[types.length];
+        for ( int i = 0; i < types.length; i++ )
+            erased[i] = erase( types[i] );
+        return erased;
+    }
+
+    /**
+     * Determines the array component type for the return value, based on the
+     * {@link ArrayTypeParameter} of the method, if present.
+     *
+     * @param args The arguments passed to the facade.
+     * @return The array component type, or <code>null</code>.
+     */
+    public Class<?> findArrayType( Object[] args ) {
+        if ( arrayTypeParameter >= 0 ) {
+            if ( args == null || arrayTypeParameter >= args.length )
+                throw new FacadeException( "Illegal array type parameter index: " + arrayTypeParameter );
+
+            return arrayTypeOf( args[arrayTypeParameter] );
+        }
+        return null;
+    }
+
+    /**
+     * Determines the array component type indicated by the value of an {@link ArrayTypeParameter}.
+     *
+     * @param arg The parameter value.
+     * @return The array component type, or <code>null</code>.
+     */
+    Class<?> arrayTypeOf( Object arg ) {
+        if ( arg == null )
+            return null;
+
+        else if ( arg instanceof Class )
+            return ( Class<?> ) arg;
+
+        else {
+            Class<?> argClass = arg.getClass();
+            return argClass.isArray() ? argClass.getComponentType() : argClass;
+        }
+    }
+
+    /**
+     * Converts the arguments passed to the facade into values usable by the wrapped object.
+     *
+     * @param args The facade arguments.
+     * @return The wrapped arguments.
+     */
+    public Object[] toWrapped( Object[] args ) {
+        if ( args == null )
+            return null;
+
+        Object[] wrappedArgs = new Object[args.length];
+        for ( int i = 0; i < parameterModes.length; i++ ) {
+            if ( parameterModes[i] == PASS )
+                wrappedArgs[i] = args[i];
+            else
+                wrappedArgs[i] = toWrapped( args[i], i );
+        }
+        return wrappedArgs;
+    }
+
+    /**
+     * Converts a single argument passed to the facade into a value usable by the wrapped object.
+     *
+     * @param arg   The argument.
+     * @param index The parameter index.
+     * @return The wrapped argument.
+     */
+    public Object toWrapped( Object arg, int index ) {
+        if ( arg instanceof Class )
+            return FacadeAssistant.getInstance().findClass( ( Class<?> ) arg, wrappedLoader );
+        return FacadeAssistant.getInstance().prepareObject( arg, parameterTypes[index], wrappedLoader,
+                parameterFacadable[index], null, wrapperLoader );
+    }
+
+    /**
+     * Converts the value returned by the wrapped object into a value usable by the facade.
+     *
+     * @param returnValue The returned value.
+     * @param arrayType   The array component type, if known.
+     * @return The converted value.
+     */
+    public Object toWrapper( Object returnValue, Class<?> arrayType ) {
+        if ( returnMode == PASS )
+            return returnValue;
+        if ( returnFuture && returnValue instanceof CompletionStage )
+            return toWrapperFuture( (CompletionStage<?>) returnValue, arrayType );
+        return FacadeAssistant.getInstance().prepareObject( returnValue, returnType, wrapperLoader,
+                returnFacadable, arrayType, wrappedLoader );
+    }
+
+    /**
+     * Returns a future which completes with the converted result of the returned stage, once
+     * it completes. No thread waits for the result: the conversion is done by the thread which
+     * completes the returned stage. Cancelling the new future cancels the returned stage.
+     *
+     * @param returned  The stage returned by the wrapped object.
+     * @param arrayType The array component type of the stage's value, if known.
+     * @return The future for the facade.
+     */
+    private CompletableFuture<Object> toWrapperFuture( final CompletionStage<?> returned, final Class<?> arrayType ) {
+        final CompletableFuture<Object> future = new ConvertedFuture( returned );
+        returned.whenComplete( new BiConsumer<Object, Throwable>() {
+            public void accept( Object value, Throwable error ) {
+                if ( error != null ) {
+                    if ( error instanceof CompletionException && error.getCause() != null )
+                        error = error.getCause();
+                    future.completeExceptionally( translateException( error ) );
+                    return;
+                }
+                try {
+                    future.complete( FacadeAssistant.getInstance().prepareObject( value,
+                            toValueType( value, arrayType ), wrapperLoader, returnFacadable, arrayType,
+                            wrappedLoader ) );
+                } catch ( RuntimeException e ) {
+                    future.completeExceptionally( e );
+                } catch ( Error e ) {
+                    future.completeExceptionally( e );
+                    throw e;
+                }
+            }
+        } );
+        return future;
+    }
+
+    /**
+     * Returns the type to convert the value a returned future completes with to. Arrays are
+     * converted to the array type given by the array type parameter or the future's declared
+     * type, as returned arrays are.
+     */
+    private Class<?> toValueType( Object value, Class<?> arrayType ) {
+        if ( value == null || !value.getClass().isArray() )
+            return Object.class;
+        if ( arrayType != null )
+            return Array.newInstance( arrayType, 0 ).getClass();
+        return futureArrayType != null ? futureArrayType : Object.class;
+    }
+
+    /**
+     * A future for the facade, which passes cancellation back to the wrapped object's stage.
+     */
+    private static class ConvertedFuture extends CompletableFuture<Object> {
+
+        private final CompletionStage<?> returned;
+
+        ConvertedFuture( CompletionStage<?> returned ) {
+            this.returned = returned;
+        }
+
+        @Override
+        public boolean cancel( boolean mayInterruptIfRunning ) {
+            boolean cancelled = super.cancel( mayInterruptIfRunning );
+            if ( cancelled ) {
+                if ( returned instanceof Future ) {
+                    ( (Future<?>) returned ).cancel( mayInterruptIfRunning );
+                } else {
+                    try {
+                        returned.toCompletableFuture().cancel( mayInterruptIfRunning );
+                    } catch ( UnsupportedOperationException e ) {
+                        LOG.debug( "Unable to cancel " + returned + ": " + e.getMessage() );
+                    }
+                }
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * Translates an exception thrown by the target method into one which can be thrown to
+     * the facade's class loader. Exceptions which only carry a message and a cause are
+     * translated by {@link ExceptionTranslator}; others are serialized.
+     *
+     * @param targetException The exception thrown by the target method.
+     * @return The exception to throw.
+     */
+    @SuppressWarnings({"unchecked"})
+    public Throwable translateException( Throwable targetException ) {
+        if ( targetException instanceof Exception ) {
+            Throwable translated = ExceptionTranslator.translate( targetException, wrapperLoader,
+                    FacadeAssistant.getInstance() );
+            if ( translated != null )
+                return translated;
+
+            Class<? extends Exception> wrapperClass = ( Class<? extends Exception> ) FacadeAssistant
+                    .getInstance().findClass( targetException.getClass(), wrapperLoader );
+            if ( wrapperClass != null ) {
+                Exception preparedException = FacadeAssistant.getInstance().prepareObject(
+                        ( Exception ) targetException, wrapperClass, wrapperLoader, false );
+                if ( preparedException != null )
+                    return preparedException;
+            }
+        } else if ( targetException != null ) {
+            return targetException;
+        }
+        return new FacadeException( targetException );
+    }
+
+    Object throwTranslated( Throwable targetException ) throws Throwable {
+        throw translateException( targetException );
+    }
+}
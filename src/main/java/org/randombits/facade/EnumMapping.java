@@ -0,0 +1,105 @@
+package org.randombits.facade;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the constants of an enum to the constants with the same names in an equivalent enum,
+ * usually the same enum loaded by another class loader. The table is built once for each pair
+ * of enums and indexed by ordinal, so converting a constant is an array lookup.
+ * <p/>
+ * Constants which only exist on one side, such as when the two class loaders have different
+ * versions of the enum, are left out of the table, and converting one of them throws a
+ * {@link FacadeException}.
+ */
+class EnumMapping {
+
+    private static final Logger LOG = Logger.getLogger( EnumMapping.class );
+
+    /**
+     * The mappings to each target enum, keyed by source enum. Cached against the target enum,
+     * which the mappings refer to, while the source enums are only held weakly.
+     */
+    private static final ClassCache<WeakIdentityMap<Class<?>, EnumMapping>> MAPPINGS =
+            new ClassCache<WeakIdentityMap<Class<?>, EnumMapping>>() {
+                @Override
+                protected WeakIdentityMap<Class<?>, EnumMapping> computeValue( Class<?> targetEnum ) {
+                    return new WeakIdentityMap<Class<?>, EnumMapping>();
+                }
+            };
+
+    private final Class<?> targetEnum;
+
+    /**
+     * The target constant for each source ordinal, or <code>null</code> if the target has no
+     * constant with that name.
+     */
+    private final Enum<?>[] targets;
+
+    private EnumMapping( Class<?> targetEnum, Enum<?>[] targets ) {
+        this.targetEnum = targetEnum;
+        this.targets = targets;
+    }
+
+    /**
+     * Returns the mapping between two enums.
+     *
+     * @param sourceEnum The source enum class.
+     * @param targetEnum The target enum class.
+     * @return The mapping.
+     * @throws FacadeException if either class is not an enum.
+     */
+    public static EnumMapping forEnums( Class<?> sourceEnum, Class<?> targetEnum ) {
+        WeakIdentityMap<Class<?>, EnumMapping> mappings = MAPPINGS.get( targetEnum );
+        EnumMapping mapping = mappings.get( sourceEnum );
+        if ( mapping == null ) {
+            mapping = create( sourceEnum, targetEnum );
+            EnumMapping existing = mappings.putIfAbsent( sourceEnum, mapping );
+            if ( existing != null )
+                mapping = existing;
+        }
+        return mapping;
+    }
+
+    private static EnumMapping create( Class<?> sourceEnum, Class<?> targetEnum ) {
+        Enum<?>[] sourceConstants = (Enum<?>[]) sourceEnum.getEnumConstants();
+        Enum<?>[] targetConstants = (Enum<?>[]) targetEnum.getEnumConstants();
+        if ( sourceConstants == null || targetConstants == null )
+            throw new FacadeException( "Unable to map " + sourceEnum.getName() + " to " + targetEnum.getName()
+                    + ": both must be enums." );
+
+        Map<String, Enum<?>> targetsByName = new HashMap<String, Enum<?>>();
+        for ( Enum<?> target : targetConstants )
+            targetsByName.put( target.name(), target );
+
+        Enum<?>[] targets = new Enum<?>[sourceConstants.length];
+        for ( Enum<?> source : sourceConstants ) {
+            Enum<?> target = targetsByName.remove( source.name() );
+            if ( target != null )
+                targets[source.ordinal()] = target;
+            else
+                LOG.debug( targetEnum.getName() + " has no constant named " + source.name() );
+        }
+        if ( !targetsByName.isEmpty() && LOG.isDebugEnabled() )
+            LOG.debug( sourceEnum.getName() + " has no constants named " + targetsByName.keySet() );
+
+        return new EnumMapping( targetEnum, targets );
+    }
+
+    /**
+     * Returns the target constant with the same name as the source constant.
+     *
+     * @param source The source constant, which must be from the source enum.
+     * @return The target constant.
+     * @throws FacadeException if the target enum has no constant with that name.
+     */
+    public Enum<?> map( Enum<?> source ) {
+        Enum<?> target = targets[source.ordinal()];
+        if ( target == null )
+            throw new FacadeException( "The constant " + source.name() + " does not exist in "
+                    + targetEnum.getName() + " from " + targetEnum.getClassLoader() );
+        return target;
+    }
+}
@@ -0,0 +1,233 @@
+package org.randombits.facade;
+
+import org.apache.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Translates exceptions thrown in one class loader into the equivalent exceptions from
+ * another without serializing them. The translated exception is created with the original's
+ * message and translated cause, through a constructor looked up once for each exception
+ * class, and the equivalent class in each target class loader is remembered, so an exception
+ * which is thrown over and over is translated without looking anything up.
+ * <p/>
+ * The translated exception is given the original's stack trace, so it reports where it was
+ * thrown rather than where it was translated. Stack trace elements hold no classes, so this
+ * doesn't keep the original's class loader reachable. Its suppressed exceptions are
+ * translated along with it.
+ * <p/>
+ * Only exceptions whose classes add no fields to {@link Throwable} can be translated this
+ * way. Others are left to {@link FacadeAssistant#prepareObject(Object, Class, ClassLoader)}.
+ */
+final class ExceptionTranslator {
+
+    private static final Logger LOG = Logger.getLogger( ExceptionTranslator.class );
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /**
+     * The most causes translated for a single exception, which also stops a cause loop.
+     */
+    private static final int MAX_CAUSES = 32;
+
+    private static final ExceptionType NONE = new ExceptionType( null, null, false );
+
+    private static final ClassCache<ExceptionType> TYPES = new ClassCache<ExceptionType>() {
+        @Override
+        protected ExceptionType computeValue( Class<?> type ) {
+            return forClass( type );
+        }
+    };
+
+    /**
+     * The equivalent class in each target class loader, held weakly. Classes which aren't
+     * found are not remembered here, so {@link FacadeAssistant#clearClassCache()} still
+     * applies to them.
+     */
+    private static final ClassCache<WeakIdentityMap<ClassLoader, WeakReference<Class<?>>>> TARGET_CLASSES =
+            new ClassCache<WeakIdentityMap<ClassLoader, WeakReference<Class<?>>>>() {
+                @Override
+                protected WeakIdentityMap<ClassLoader, WeakReference<Class<?>>> computeValue( Class<?> type ) {
+                    return new WeakIdentityMap<ClassLoader, WeakReference<Class<?>>>();
+                }
+            };
+
+    private ExceptionTranslator() {}
+
+    /**
+     * Translates the exception for the target class loader.
+     *
+     * @param source            The exception to translate.
+     * @param targetClassLoader The target class loader.
+     * @param assistant         The assistant to find classes and convert causes with.
+     * @return The translated exception, the exception itself if its class is shared, or
+     *         <code>null</code> if it can't be translated without serializing it.
+     */
+    public static Throwable translate( Throwable source, ClassLoader targetClassLoader, FacadeAssistant assistant ) {
+        return translate( source, targetClassLoader, assistant, MAX_CAUSES );
+    }
+
+    private static Throwable translate( Throwable source, ClassLoader targetClassLoader, FacadeAssistant assistant,
+                                        int causes ) {
+        Class<?> sourceClass = source.getClass();
+        Class<?> targetClass = findTargetClass( sourceClass, targetClassLoader, assistant );
+        if ( targetClass == null )
+            return null;
+        if ( targetClass == sourceClass )
+            return source;
+
+        ExceptionType targetType = TYPES.get( targetClass );
+        if ( targetType == NONE || TYPES.get( sourceClass ) == NONE )
+            return null;
+
+        Throwable cause = source.getCause();
+        Throwable targetCause = null;
+        if ( cause != null && causes > 0 )
+            targetCause = translateRelated( cause, targetClassLoader, assistant, causes - 1 );
+
+        Throwable target = targetType.create( source.getMessage(), targetCause );
+        if ( target == null )
+            return null;
+        target.setStackTrace( source.getStackTrace() );
+        if ( causes > 0 ) {
+            for ( Throwable suppressed : source.getSuppressed() )
+                target.addSuppressed( translateRelated( suppressed, targetClassLoader, assistant, causes - 1 ) );
+        }
+        return target;
+    }
+
+    /**
+     * Translates a cause or suppressed exception, converting it with the assistant if it
+     * can't be translated directly.
+     */
+    private static Throwable translateRelated( Throwable source, ClassLoader targetClassLoader,
+                                               FacadeAssistant assistant, int causes ) {
+        Throwable target = translate( source, targetClassLoader, assistant, causes );
+        if ( target == null ) {
+            Object converted = assistant.prepareObject( source, Throwable.class, targetClassLoader );
+            target = converted instanceof Throwable ? (Throwable) converted : source;
+        }
+        return target;
+    }
+
+    private static Class<?> findTargetClass( Class<?> sourceClass, ClassLoader targetClassLoader,
+                                             FacadeAssistant assistant ) {
+        if ( targetClassLoader == null )
+            return assistant.findClass( sourceClass, targetClassLoader );
+
+        WeakIdentityMap<ClassLoader, WeakReference<Class<?>>> targetClasses = TARGET_CLASSES.get( sourceClass );
+        WeakReference<Class<?>> cached = targetClasses.get( targetClassLoader );
+        Class<?> targetClass = cached != null ? cached.get() : null;
+        if ( targetClass == null ) {
+            targetClass = assistant.findClass( sourceClass, targetClassLoader );
+            if ( targetClass != null )
+                targetClasses.put( targetClassLoader, new WeakReference<Class<?>>( targetClass ) );
+        }
+        return targetClass;
+    }
+
+    private static ExceptionType forClass( Class<?> type ) {
+        if ( !Throwable.class.isAssignableFrom( type ) || Modifier.isAbstract( type.getModifiers() ) )
+            return NONE;
+        for ( Class<?> c = type; c != Throwable.class; c = c.getSuperclass() ) {
+            for ( Field field : c.getDeclaredFields() ) {
+                int modifiers = field.getModifiers();
+                if ( !Modifier.isStatic( modifiers ) && !Modifier.isTransient( modifiers ) ) {
+                    LOG.debug( type.getName() + " has its own fields, so will be serialized to translate it" );
+                    return NONE;
+                }
+            }
+        }
+
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor( String.class, Throwable.class );
+            return new ExceptionType( type, toConstructor( constructor ), true );
+        } catch ( NoSuchMethodException e ) {
+            // Try the message constructor.
+        } catch ( IllegalAccessException e ) {
+            LOG.debug( "Unable to create " + type.getName() + ": " + e.getMessage(), e );
+        } catch ( RuntimeException e ) {
+            // Includes the exception thrown when the class's package is not open to us.
+            LOG.debug( "Unable to create " + type.getName() + ": " + e.getMessage(), e );
+        }
+        try {
+            return new ExceptionType( type, toConstructor( type.getDeclaredConstructor( String.class ) ), false );
+        } catch ( NoSuchMethodException e ) {
+            LOG.debug( type.getName() + " has no message constructor, so will be serialized to translate it" );
+        } catch ( IllegalAccessException e ) {
+            LOG.debug( "Unable to create " + type.getName() + ": " + e.getMessage(), e );
+        } catch ( RuntimeException e ) {
+            LOG.debug( "Unable to create " + type.getName() + ": " + e.getMessage(), e );
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns a handle of type <code>(String)Throwable</code> or
+     * <code>(String, Throwable)Throwable</code> for the constructor.
+     */
+    private static MethodHandle toConstructor( Constructor<?> constructor ) throws IllegalAccessException {
+        constructor.setAccessible( true );
+        MethodHandle handle = LOOKUP.unreflectConstructor( constructor );
+        return handle.asType( handle.type().changeReturnType( Throwable.class ) );
+    }
+
+    /**
+     * The constructor of an exception class.
+     */
+    private static class ExceptionType {
+
+        private final Class<?> type;
+
+        private final MethodHandle constructor;
+
+        private final boolean takesCause;
+
+        ExceptionType( Class<?> type, MethodHandle constructor, boolean takesCause ) {
+            this.type = type;
+            this.constructor = constructor;
+            this.takesCause = takesCause;
+        }
+
+        /**
+         * Returns a new exception, or <code>null</code> if the constructor fails or doesn't
+         * keep the message and cause as they were given, such as when it decorates the message.
+         */
+        Throwable create( String message, Throwable cause ) {
+            try {
+                Throwable exception;
+                if ( takesCause ) {
+                    exception = (Throwable) constructor.invokeExact( message, cause );
+                } else {
+                    exception = (Throwable) constructor.invokeExact( message );
+                    if ( cause != null && exception.getCause() == null ) {
+                        try {
+                            exception.initCause( cause );
+                        } catch ( IllegalStateException e ) {
+                            // The constructor set the cause itself.
+                            LOG.debug( "Unable to set the cause of " + type.getName() + ": " + e.getMessage() );
+                        }
+                    }
+                }
+                String created = exception.getMessage();
+                if ( ( message == null ? created != null : !message.equals( created ) )
+                        || exception.getCause() != cause ) {
+                    LOG.debug( type.getName() + " changes its message or cause, so will be serialized to "
+                            + "translate it" );
+                    return null;
+                }
+                return exception;
+            } catch ( Error e ) {
+                throw e;
+            } catch ( Throwable t ) {
+                LOG.debug( "Unable to create " + type.getName() + ": " + t.getMessage(), t );
+                return null;
+            }
+        }
+    }
+}
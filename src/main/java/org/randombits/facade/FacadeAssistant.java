@@ -27,9 +27,25 @@ import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This assistant class helps with transporting objects between classloaders.
@@ -41,7 +57,11 @@ public class FacadeAssistant {
     
     private static final Logger LOG = Logger.getLogger( FacadeAssistant.class );
 
-    class FacadeInfo {
+    /**
+     * The facadable return value, parameters and array type parameter of a method. Holds no
+     * reference to the assistant, since it may be cached against a class from another loader.
+     */
+    static class FacadeInfo {
 
         private boolean returnFacadable;
 
@@ -49,13 +69,14 @@ public class FacadeAssistant {
 
         private boolean[] parameterFacadable;
 
-        public FacadeInfo( Class<?> type, MethodSignature signature ) {
+        FacadeInfo( FacadeAssistant assistant, Class<?> type, MethodSignature signature ) {
             parameterFacadable = new boolean[signature.getParameterCount()];
 
-            Class<? extends Annotation> facadable = findAnnotationClass( Facadable.class, type );
-            Class<? extends Annotation> arrayTypeParam = findAnnotationClass( ArrayTypeParameter.class, type );
+            Class<? extends Annotation> facadable = assistant.findAnnotationClass( Facadable.class, type );
+            Class<? extends Annotation> arrayTypeParam =
+                    assistant.findAnnotationClass( ArrayTypeParameter.class, type );
             if ( facadable != null ) {
-                checkMethod( type, signature, facadable, arrayTypeParam );
+                checkMethod( assistant, type, signature, facadable, arrayTypeParam );
             }
         }
 
@@ -75,7 +96,7 @@ public class FacadeAssistant {
             return parameterFacadable.length;
         }
 
-        private boolean checkMethod( Class<?> type, MethodSignature signature,
+        private boolean checkMethod( FacadeAssistant assistant, Class<?> type, MethodSignature signature,
                                      Class<? extends Annotation> facadable, Class<? extends Annotation> arrayTypeParam ) {
             boolean allFacadable = false;
 
@@ -116,13 +137,13 @@ public class FacadeAssistant {
                 Class<?>[] interfaces = type.getInterfaces();
                 if ( interfaces != null ) {
                     for ( int i = 0; !allFacadable && i < interfaces.length; i++ ) {
-                        allFacadable = mergeInfo( findFacadeInfo( interfaces[i], signature ) );
+                        allFacadable = mergeInfo( assistant.findFacadeInfo( interfaces[i], signature ) );
                     }
                 }
 
                 // Second, check the superclass hierarchy if necessary
                 if ( !allFacadable ) {
-                    allFacadable = mergeInfo( findFacadeInfo( type.getSuperclass(), signature ) );
+                    allFacadable = mergeInfo( assistant.findFacadeInfo( type.getSuperclass(), signature ) );
                 }
             }
 
@@ -188,16 +209,204 @@ public class FacadeAssistant {
 
     private static final FacadeAssistant INSTANCE = new FacadeAssistant();
 
-    private FacadeCache cache;
+    /**
+     * Marks a source class which has no interfaces in a target class loader.
+     */
+    private static final Object NO_PROXY_CLASS = new Object();
+
+    /**
+     * Marks a target class loader which has no compatible {@link FacadeInvocationHandler}.
+     */
+    private static final Object NO_HANDLER_FACTORY = new Object();
+
+    private static final Comparator<Class<?>> CLASS_NAME_ORDER = new Comparator<Class<?>>() {
+        public int compare( Class<?> class1, Class<?> class2 ) {
+            return class1.getName().compareTo( class2.getName() );
+        }
+    };
+
+    /**
+     * Whether each interface is a functional interface, with a single abstract method.
+     */
+    private static final ClassValue<Boolean> FUNCTIONAL_INTERFACES = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue( Class<?> type ) {
+            if ( !type.isInterface() || type.isAnnotation() )
+                return false;
+            int abstractMethods = 0;
+            for ( Method method : type.getMethods() ) {
+                if ( Modifier.isAbstract( method.getModifiers() ) && !isObjectMethod( method ) )
+                    abstractMethods++;
+            }
+            return abstractMethods == 1;
+        }
+    };
+
+    /**
+     * The constructor of each proxy class, as a handle of type
+     * <code>(InvocationHandler)Object</code>, or <code>null</code> if it is not accessible.
+     * Stored against the proxy class, so it goes with the target class loader.
+     */
+    private static final ClassValue<MethodHandle> PROXY_CONSTRUCTORS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue( Class<?> proxyClass ) {
+            try {
+                Constructor<?> constructor = proxyClass.getConstructor( InvocationHandler.class );
+                if ( !Modifier.isPublic( proxyClass.getModifiers() ) )
+                    constructor.setAccessible( true );
+                return MethodHandles.lookup().unreflectConstructor( constructor )
+                        .asType( MethodType.methodType( Object.class, InvocationHandler.class ) );
+            } catch ( NoSuchMethodException e ) {
+                LOG.debug( "Unable to find the proxy constructor: " + e.getMessage(), e );
+            } catch ( IllegalAccessException e ) {
+                LOG.debug( "Unable to access the proxy constructor: " + e.getMessage(), e );
+            } catch ( RuntimeException e ) {
+                // Includes the exception thrown when the proxy's package is not open to us.
+                LOG.debug( "Unable to access the proxy constructor: " + e.getMessage(), e );
+            }
+            return null;
+        }
+    };
+
+    /**
+     * The <code>newInstance</code> method of each copy of {@link FacadeClassGenerator}, as a
+     * handle of type <code>(ClassLoader, Class[], InvocationHandler)Object</code>, or
+     * <code>null</code> if the copy is incompatible. Stored against the generator class.
+     */
+    private static final ClassValue<MethodHandle> GENERATOR_FACTORIES = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue( Class<?> generatorClass ) {
+            try {
+                return MethodHandles.publicLookup().findStatic( generatorClass, "newInstance",
+                        MethodType.methodType( Object.class, ClassLoader.class, Class[].class,
+                                InvocationHandler.class ) );
+            } catch ( NoSuchMethodException e ) {
+                LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
+            } catch ( IllegalAccessException e ) {
+                LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
+            }
+            return null;
+        }
+    };
+
+    private volatile FacadeCache cache;
+
+    private volatile InvocationEngine invocationEngine = InvocationEngine.METHOD_HANDLES;
+
+    private volatile FacadeEngine facadeEngine = FacadeEngine.PROXY;
+
+    private volatile boolean initializeClasses = true;
+
+    private volatile SerializationEngine serializationEngine = new BufferedSerializationEngine();
+
+    /**
+     * The default for {@link #setParallelArrayThreshold(int)}.
+     */
+    public static final int DEFAULT_PARALLEL_ARRAY_THRESHOLD = 8192;
+
+    /**
+     * The smallest number of items converted by a single parallel task.
+     */
+    private static final int MINIMUM_ARRAY_CHUNK = 1024;
+
+    /**
+     * Array items converted through {@link #prepareObject}.
+     */
+    private static final int ITEM_CONVERT = 0;
+
+    /**
+     * Array items which are always passed as they are.
+     */
+    private static final int ITEM_PASS = 1;
+
+    /**
+     * Array items which are always facaded.
+     */
+    private static final int ITEM_FACADE = 2;
+
+    private volatile int parallelArrayThreshold = DEFAULT_PARALLEL_ARRAY_THRESHOLD;
+
+    private volatile ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+    private volatile boolean collectionViews;
+
+    private volatile int iteratorBatchSize = 1;
+
+    private final ConcurrentMap<String, Transcoder> transcoders = new ConcurrentHashMap<String, Transcoder>();
+
+    /**
+     * Incremented whenever a transcoder is registered or unregistered, so that the
+     * {@link #transcoderBindings} made before then are resolved again.
+     */
+    private final AtomicInteger transcoderVersion = new AtomicInteger();
+
+    /**
+     * The transcoder for each source class in each target class loader. Bindings only name the
+     * class the transcoder is registered for, so a transcoder is held by {@link #transcoders}
+     * alone and is never applied once it has been unregistered.
+     */
+    private final ClassCache<WeakIdentityMap<ClassLoader, TranscoderBinding>> transcoderBindings
+            = new ClassCache<WeakIdentityMap<ClassLoader, TranscoderBinding>>() {
+        @Override
+        protected WeakIdentityMap<ClassLoader, TranscoderBinding> computeValue( Class<?> type ) {
+            return new WeakIdentityMap<ClassLoader, TranscoderBinding>();
+        }
+    };
+
+    private final ClassResolver classResolver = new ClassResolver();
+
+    /**
+     * The invocation handler factory for each target class loader. The factories are held
+     * weakly; each one is kept alive by {@link InvocationHandlerFactory}'s own cache.
+     */
+    private final WeakIdentityMap<ClassLoader, Object> handlerFactories = new WeakIdentityMap<ClassLoader, Object>();
+
+    /**
+     * The interface lists of the proxy classes created for each target class loader, so they
+     * can be counted without holding on to the classes.
+     */
+    private final WeakIdentityMap<ClassLoader, Set<String>> proxyClassNames = new WeakIdentityMap<ClassLoader, Set<String>>();
+
+    private final Set<String> bootstrapProxyClassNames = newConcurrentSet();
 
-    private Map<Class<?>, Boolean> facadableClasses;
+    /**
+     * The proxy class for each source class in each target class loader. The proxy classes
+     * are held weakly, and so live as long as their class loader.
+     */
+    private final ClassCache<WeakIdentityMap<ClassLoader, Object>> proxyClasses
+            = new ClassCache<WeakIdentityMap<ClassLoader, Object>>() {
+        @Override
+        protected WeakIdentityMap<ClassLoader, Object> computeValue( Class<?> type ) {
+            return new WeakIdentityMap<ClassLoader, Object>();
+        }
+    };
 
-    private Map<Class<?>, Map<MethodSignature, FacadeInfo>> facadableMethods;
+    /**
+     * Whether a class is facadable, keyed by the {@link Facadable} annotation class it was
+     * checked against. The annotation class may come from another loader than the class, so
+     * the entries are kept in a {@link ClassCache} and the annotation classes held weakly.
+     */
+    private final ClassCache<WeakIdentityMap<Class<?>, Boolean>> facadableClasses;
+
+    /**
+     * The facade info for each method signature of a class.
+     */
+    private final ClassCache<ConcurrentMap<MethodSignature, FacadeInfo>> facadableMethods;
 
     FacadeAssistant() {
-        facadableClasses = new java.util.HashMap<Class<?>, Boolean>();
-        facadableMethods = new java.util.HashMap<Class<?>, Map<MethodSignature, FacadeInfo>>();
-        cache = new WeakHashMapCache();
+        facadableClasses = new ClassCache<WeakIdentityMap<Class<?>, Boolean>>() {
+            @Override
+            protected WeakIdentityMap<Class<?>, Boolean> computeValue( Class<?> type ) {
+                return new WeakIdentityMap<Class<?>, Boolean>();
+            }
+        };
+        facadableMethods = new ClassCache<ConcurrentMap<MethodSignature, FacadeInfo>>() {
+            @Override
+            protected ConcurrentMap<MethodSignature, FacadeInfo> computeValue( Class<?> type ) {
+                return new ConcurrentHashMap<MethodSignature, FacadeInfo>();
+            }
+        };
+        cache = new ConcurrentFacadeCache();
     }
 
     public static FacadeAssistant getInstance() {
@@ -207,7 +416,8 @@ public class FacadeAssistant {
     /**
      * Sets the cache provider to the specified cache. If a cache has already been configured,
      * it will be cleared before being replaced. The default cache implementation is the
-     * {@link WeakHashMapCache}.
+     * {@link ConcurrentFacadeCache}. Caches which implement {@link LoaderAwareFacadeCache}
+     * are given the target class loader of each facade.
      *
      * @param cache The new cache.
      */
@@ -221,6 +431,219 @@ public class FacadeAssistant {
         }
     }
 
+    /**
+     * Returns the engine used by facades created in this class loader to invoke methods on
+     * their wrapped objects.
+     *
+     * @return The invocation engine.
+     */
+    public InvocationEngine getInvocationEngine() {
+        return invocationEngine;
+    }
+
+    /**
+     * Sets the engine used by facades to invoke methods on their wrapped objects. The default
+     * is {@link InvocationEngine#METHOD_HANDLES}, with {@link InvocationEngine#REFLECTION}
+     * available as a fallback.
+     *
+     * @param invocationEngine The invocation engine.
+     */
+    public void setInvocationEngine( InvocationEngine invocationEngine ) {
+        if ( invocationEngine == null )
+            throw new IllegalArgumentException( "The invocation engine may not be null." );
+        this.invocationEngine = invocationEngine;
+    }
+
+    /**
+     * Returns the engine used to create facades.
+     *
+     * @return The facade engine.
+     */
+    public FacadeEngine getFacadeEngine() {
+        return facadeEngine;
+    }
+
+    /**
+     * Sets the engine used to create facades. The default is {@link FacadeEngine#PROXY}.
+     * Facades created by {@link FacadeEngine#GENERATED} always invoke the wrapped object via
+     * method handles, regardless of the configured {@link InvocationEngine}.
+     *
+     * @param facadeEngine The facade engine.
+     */
+    public void setFacadeEngine( FacadeEngine facadeEngine ) {
+        if ( facadeEngine == null )
+            throw new IllegalArgumentException( "The facade engine may not be null." );
+        this.facadeEngine = facadeEngine;
+    }
+
+    /**
+     * Returns the engine used to copy serializable objects which are neither shared nor
+     * facadable.
+     *
+     * @return The serialization engine.
+     */
+    public SerializationEngine getSerializationEngine() {
+        return serializationEngine;
+    }
+
+    /**
+     * Sets the engine used to copy serializable objects which are neither shared nor
+     * facadable. The default is the {@link BufferedSerializationEngine}. The
+     * {@link GraphCopyEngine} copies plain data classes without serializing them.
+     *
+     * @param serializationEngine The serialization engine.
+     */
+    public void setSerializationEngine( SerializationEngine serializationEngine ) {
+        if ( serializationEngine == null )
+            throw new IllegalArgumentException( "The serialization engine may not be null." );
+        this.serializationEngine = serializationEngine;
+    }
+
+    /**
+     * Registers a transcoder for the named class. Objects of the class, or of any subclass
+     * without a transcoder of its own, are passed to the transcoder before any attempt to
+     * facade or serialize them, provided the target class loader has a class of the same name.
+     * Shared objects are passed through as usual. Any transcoder already registered for the
+     * class is replaced.
+     *
+     * @param className  The class name.
+     * @param transcoder The transcoder.
+     */
+    public void registerTranscoder( String className, Transcoder transcoder ) {
+        if ( className == null || transcoder == null )
+            throw new IllegalArgumentException( "The class name and transcoder may not be null." );
+        transcoders.put( className, transcoder );
+        transcoderVersion.incrementAndGet();
+    }
+
+    /**
+     * Unregisters the transcoder for the named class.
+     *
+     * @param className The class name.
+     * @return The transcoder which was registered, or <code>null</code>.
+     */
+    public Transcoder unregisterTranscoder( String className ) {
+        Transcoder transcoder = transcoders.remove( className );
+        if ( transcoder != null )
+            transcoderVersion.incrementAndGet();
+        return transcoder;
+    }
+
+    /**
+     * Returns the number of items an array must have for them to be converted in parallel.
+     *
+     * @return The parallel array threshold.
+     */
+    public int getParallelArrayThreshold() {
+        return parallelArrayThreshold;
+    }
+
+    /**
+     * Sets the number of items an array must have for them to be converted in parallel. Only
+     * arrays whose items need converting one by one, such as facadable or serializable
+     * items, are converted in parallel. The default is
+     * {@link #DEFAULT_PARALLEL_ARRAY_THRESHOLD}; use {@link Integer#MAX_VALUE} to always
+     * convert arrays on the calling thread.
+     *
+     * @param parallelArrayThreshold The parallel array threshold.
+     */
+    public void setParallelArrayThreshold( int parallelArrayThreshold ) {
+        if ( parallelArrayThreshold < 1 )
+            throw new IllegalArgumentException( "The threshold must be at least 1: " + parallelArrayThreshold );
+        this.parallelArrayThreshold = parallelArrayThreshold;
+    }
+
+    /**
+     * Sets the pool large arrays are converted on. By default, the common pool is used.
+     * <p/>
+     * Items are converted on the pool's threads with the calling thread's context class
+     * loader, so transcoders, serialization and plugin code see the same one either way.
+     *
+     * @param forkJoinPool The pool.
+     */
+    public void setForkJoinPool( ForkJoinPool forkJoinPool ) {
+        if ( forkJoinPool == null )
+            throw new IllegalArgumentException( "The fork-join pool may not be null." );
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Returns <code>true</code> if collections are passed as lazy views.
+     *
+     * @return <code>true</code> if collection views are enabled.
+     */
+    public boolean isCollectionViews() {
+        return collectionViews;
+    }
+
+    /**
+     * Sets whether a <code>Collection</code>, <code>List</code>, <code>Set</code>,
+     * <code>Map</code>, <code>Iterable</code>, <code>Iterator</code>, <code>Stream</code> or
+     * <code>Spliterator</code> passed where one of those interfaces is expected is wrapped in a
+     * lazy view, rather than being passed as it is or copied. Each element is converted when it
+     * is read, and changes made through the view are written through to the original. The same
+     * applies to <code>Flow.Publisher</code> and <code>Flow.Subscriber</code>, whose elements
+     * are converted as they are delivered. Off by default.
+     *
+     * @param collectionViews <code>true</code> to pass collections as views.
+     */
+    public void setCollectionViews( boolean collectionViews ) {
+        this.collectionViews = collectionViews;
+    }
+
+    /**
+     * Returns the number of elements iterator views read ahead and convert at a time.
+     *
+     * @return The iterator batch size.
+     */
+    public int getIteratorBatchSize() {
+        return iteratorBatchSize;
+    }
+
+    /**
+     * Sets the number of elements iterator views read ahead and convert at a time. The
+     * default is 1, which reads nothing ahead. Iterators which read ahead do not support
+     * <code>remove</code>.
+     *
+     * @param iteratorBatchSize The iterator batch size.
+     * @see #setCollectionViews(boolean)
+     */
+    public void setIteratorBatchSize( int iteratorBatchSize ) {
+        if ( iteratorBatchSize < 1 )
+            throw new IllegalArgumentException( "The batch size must be at least 1: " + iteratorBatchSize );
+        this.iteratorBatchSize = iteratorBatchSize;
+    }
+
+    /**
+     * Returns <code>true</code> if classes are initialized when they are first found by
+     * {@link #findClass(String, ClassLoader)}.
+     *
+     * @return <code>true</code> if found classes are initialized.
+     */
+    public boolean isInitializeClasses() {
+        return initializeClasses;
+    }
+
+    /**
+     * Sets whether classes are initialized when they are first found by
+     * {@link #findClass(String, ClassLoader)}. The default is <code>true</code>. If
+     * <code>false</code>, checking whether a class loader can see a class does not run its
+     * static initializers; they run when the class is first used instead.
+     *
+     * @param initializeClasses <code>true</code> if found classes should be initialized.
+     */
+    public void setInitializeClasses( boolean initializeClasses ) {
+        this.initializeClasses = initializeClasses;
+    }
+
+    /**
+     * Forgets the classes found and not found by {@link #findClass(String, ClassLoader)}. This
+     * is only needed if a class loader may later find classes it could not find before.
+     */
+    public void clearClassCache() {
+        classResolver.clear();
+    }
+
     public Object prepareObject( Object sourceObject, ClassLoader targetClassLoader ) {
         return prepareObject( sourceObject, targetClassLoader, false );
     }
@@ -246,7 +669,9 @@ public class FacadeAssistant {
      * <li>If the target class loader is the same as the object's class loader,
      * return return the original object.</li>
      * <li>If the object's class exists as the exact same class in the target
-     * class loader, return the original object.</li>
+     * class loader, return the original object. EnumSets and EnumMaps are the
+     * exception: if their enum is not shared, they are rebuilt with the target
+     * class loader's constants.</li>
      * <li>If the object implements the {@link Facadable} interface, a proxy
      * object will be returned which implements all interfaces the object
      * implements that have equivalents present in the target class loader.</li>
@@ -278,9 +703,23 @@ public class FacadeAssistant {
         return prepareObject( sourceObject, targetType, targetClassLoader, facadeShared, null );
     }
 
-    @SuppressWarnings({"unchecked"})
     public <T> T prepareObject( Object sourceObject, Class<T> targetType, ClassLoader targetClassLoader,
                                 boolean facadeShared, Class<?> componentType ) {
+        return prepareObject( sourceObject, targetType, targetClassLoader, facadeShared, componentType, null );
+    }
+
+    /**
+     * Prepares an object which was passed from the origin class loader. The origin is used by
+     * collection views whose collection class does not say where it came from, as with the
+     * <code>java.util</code> collections, to convert the elements written through them.
+     *
+     * @param originClassLoader The class loader the object was passed from, or <code>null</code>
+     *                          if it is not known.
+     * @see #prepareObject(Object, Class, ClassLoader, boolean)
+     */
+    @SuppressWarnings({"unchecked"})
+    <T> T prepareObject( Object sourceObject, Class<T> targetType, ClassLoader targetClassLoader,
+                         boolean facadeShared, Class<?> componentType, ClassLoader originClassLoader ) {
         if ( sourceObject == null )
             return null;
 
@@ -292,11 +731,37 @@ public class FacadeAssistant {
             // The object is from the target class loader
             return (T) sourceObject;
         }
+        // EnumSets and EnumMaps are shared, but the enums they hold may not be.
+        if ( isEnumCollection( sourceType ) ) {
+            Object targetObject = sourceObject instanceof EnumSet
+                    ? toEnumSet( (EnumSet<?>) sourceObject, targetClassLoader )
+                    : toEnumMap( (EnumMap<?, ?>) sourceObject, targetClassLoader, facadeShared );
+            if ( targetType.isInstance( targetObject ) )
+                return (T) targetObject;
+        }
+
+        // Pass collections as lazy views, unless they are facadable themselves.
+        if ( collectionViews && FacadeCollections.isViewType( targetType ) && targetType.isInstance( sourceObject )
+                && !isFacadable( sourceObject, targetType ) )
+            return (T) FacadeCollections.toView( sourceObject, targetType, targetClassLoader, originClassLoader,
+                    this );
+        if ( collectionViews && FacadeFlows.isViewType( targetType ) && targetType.isInstance( sourceObject )
+                && !isFacadable( sourceObject, targetType ) )
+            return (T) FacadeFlows.toView( sourceObject, targetType, targetClassLoader, this );
+
         // Check if it's shared.
         boolean isShared = isShared( sourceObject, targetClassLoader );
         if ( ( !facadeShared && isShared ) )
             return (T) sourceObject;
 
+        // Check for a registered transcoder.
+        TranscoderBinding transcoderBinding = findTranscoder( sourceType, targetClassLoader );
+        if ( transcoderBinding != null ) {
+            Object targetObject = transcoderBinding.transcode( sourceObject, this );
+            if ( targetType.isInstance( targetObject ) )
+                return (T) targetObject;
+        }
+
         // Handle special class types
         if ( Class.class.equals( sourceType ) ) {
             // It's a class
@@ -307,9 +772,9 @@ public class FacadeAssistant {
             if ( componentType == null )
                 componentType = targetType.getComponentType();
             return (T) toArray( sourceObject, componentType, targetClassLoader, facadeShared );
-        } else if ( sourceType.isEnum() && targetType.isEnum() ) {
-            // Handle enums
-            return toEnum( sourceObject, targetType );
+        } else if ( sourceObject instanceof Enum && targetType.isEnum() ) {
+            // Handle enums, including constants with their own class bodies.
+            return toEnum( (Enum<?>) sourceObject, targetType );
         }
 
         // Not shared, so see if it's wrapped.
@@ -325,22 +790,28 @@ public class FacadeAssistant {
         if ( ( Object.class.equals( targetType ) || targetType.isInterface() ) ) {
             if ( isShared || isFacadable( sourceObject, targetType ) ) {
                 // If we get this far, we're going to have to convert it.
-                // See if we have a cachable facade already constructed
+                targetObject = toCachableFacade( sourceObject, targetType, targetClassLoader,
+                        isCachable( sourceObject ) );
+            } else if ( isFunctional( sourceObject, targetType ) ) {
+                // Callbacks such as lambdas are facaded without being annotated, but are only
+                // cached if they are cachable, like any other facade.
                 boolean cachable = isCachable( sourceObject );
                 if ( cachable )
-                    targetObject = getCachedFacade( sourceObject, targetType );
-
+                    targetObject = getCachedFacade( sourceObject, targetType, targetClassLoader );
                 if ( targetObject == null ) {
-                    targetObject = toFacade( sourceObject, targetType, targetClassLoader );
-
-                    if ( targetObject != null && cachable ) {
-                        setCachedFacade( targetObject, sourceObject, targetType );
-                    }
+                    targetObject = createFacade( sourceObject, targetType, targetClassLoader );
+                    if ( targetObject != null && cachable )
+                        setCachedFacade( targetObject, sourceObject, targetType, targetClassLoader );
                 }
             }
 
         }
 
+        if ( targetObject == null ) {
+            // Rebuild records and other immutable values from their components.
+            targetObject = toValue( sourceObject, targetType, targetClassLoader );
+        }
+
         if ( targetObject == null && sourceObject instanceof Serializable
                 && findClass( sourceObject.getClass(), targetClassLoader ) != null ) {
             // If that fails, convert it via Serialization, so long as the class is available locally.
@@ -358,6 +829,210 @@ public class FacadeAssistant {
 
     }
 
+    /**
+     * Returns the facade for the object, using the facade cache if the object is cachable.
+     *
+     * @param sourceObject      The source object.
+     * @param targetType        The target type.
+     * @param targetClassLoader The target class loader.
+     * @param cachable          If <code>true</code>, the facade is cached.
+     * @return The facade, or <code>null</code> if none could be created.
+     */
+    private <T> T toCachableFacade( Object sourceObject, Class<T> targetType, ClassLoader targetClassLoader,
+                                    boolean cachable ) {
+        // See if we have a cachable facade already constructed
+        T targetObject = null;
+        if ( cachable )
+            targetObject = getCachedFacade( sourceObject, targetType, targetClassLoader );
+
+        if ( targetObject == null ) {
+            targetObject = toFacade( sourceObject, targetType, targetClassLoader );
+
+            if ( targetObject != null && cachable ) {
+                setCachedFacade( targetObject, sourceObject, targetType, targetClassLoader );
+            }
+        }
+        return targetObject;
+    }
+
+    /**
+     * Returns <code>true</code> for EnumSets and EnumMaps, which are shared but are rebuilt
+     * if the enum they hold is not.
+     */
+    private static boolean isEnumCollection( Class<?> type ) {
+        return EnumSet.class.isAssignableFrom( type ) || type == EnumMap.class;
+    }
+
+    /**
+     * Rebuilds an EnumSet with the equivalent constants of the enum in the target class loader.
+     *
+     * @param sourceSet         The source set.
+     * @param targetClassLoader The target class loader.
+     * @return The new set, or <code>null</code> if the enum is shared or is not available in
+     *         the target class loader.
+     * @throws FacadeException if a constant is missing from the target enum.
+     */
+    private EnumSet<?> toEnumSet( EnumSet<?> sourceSet, ClassLoader targetClassLoader ) {
+        // An empty set has no constants to find the enum from, but its complement does.
+        EnumSet<?> constants = sourceSet.isEmpty() ? EnumSet.complementOf( sourceSet ) : sourceSet;
+        if ( constants.isEmpty() )
+            return null;
+
+        Class<?> sourceEnum = constants.iterator().next().getDeclaringClass();
+        Class<?> targetEnum = findClass( sourceEnum, targetClassLoader );
+        if ( targetEnum == null || targetEnum == sourceEnum )
+            return null;
+
+        EnumMapping mapping = EnumMapping.forEnums( sourceEnum, targetEnum );
+        EnumSet<?> targetSet = newEnumSet( targetEnum );
+        for ( Enum<?> constant : sourceSet )
+            addConstant( targetSet, mapping.map( constant ) );
+        return targetSet;
+    }
+
+    /**
+     * Rebuilds an EnumMap keyed by the equivalent constants of the enum in the target class
+     * loader, converting each value.
+     *
+     * @param sourceMap         The source map.
+     * @param targetClassLoader The target class loader.
+     * @param facadeShared      If <code>true</code>, shared values are facaded.
+     * @return The new map, or <code>null</code> if the map is empty, or the enum is shared or
+     *         is not available in the target class loader.
+     * @throws FacadeException if a constant is missing from the target enum.
+     */
+    private EnumMap<?, ?> toEnumMap( EnumMap<?, ?> sourceMap, ClassLoader targetClassLoader, boolean facadeShared ) {
+        // An empty map has no keys to find the enum from, so it is left to be serialized.
+        if ( sourceMap.isEmpty() )
+            return null;
+
+        Class<?> sourceEnum = sourceMap.keySet().iterator().next().getDeclaringClass();
+        Class<?> targetEnum = findClass( sourceEnum, targetClassLoader );
+        if ( targetEnum == null || targetEnum == sourceEnum )
+            return null;
+
+        EnumMapping mapping = EnumMapping.forEnums( sourceEnum, targetEnum );
+        EnumMap<?, Object> targetMap = newEnumMap( targetEnum );
+        for ( Map.Entry<? extends Enum<?>, ?> entry : sourceMap.entrySet() ) {
+            Object value = prepareObject( entry.getValue(), Object.class, targetClassLoader, facadeShared );
+            putConstant( targetMap, mapping.map( entry.getKey() ), value );
+        }
+        return targetMap;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static <E extends Enum<E>> EnumSet<E> newEnumSet( Class<?> enumType ) {
+        return EnumSet.noneOf( (Class<E>) enumType );
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static <E extends Enum<E>> void addConstant( EnumSet<E> set, Enum<?> constant ) {
+        set.add( (E) constant );
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static <E extends Enum<E>> EnumMap<E, Object> newEnumMap( Class<?> enumType ) {
+        return new EnumMap<E, Object>( (Class<E>) enumType );
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static <E extends Enum<E>> void putConstant( EnumMap<E, Object> map, Enum<?> constant, Object value ) {
+        map.put( (E) constant, value );
+    }
+
+    /**
+     * Rebuilds a record, or a class with a <code>java.beans.ConstructorProperties</code>
+     * constructor covering all of its fields, in the target class loader, converting each of
+     * its components.
+     *
+     * @param sourceObject      The source object.
+     * @param targetType        The target type.
+     * @param targetClassLoader The target class loader.
+     * @return The rebuilt object, or <code>null</code> if it can't be rebuilt.
+     */
+    @SuppressWarnings({"unchecked"})
+    private <T> T toValue( Object sourceObject, Class<T> targetType, ClassLoader targetClassLoader ) {
+        ValueType sourceValueType = ValueType.forClass( sourceObject.getClass() );
+        if ( sourceValueType == null )
+            return null;
+        Class<?> targetClass = findClass( sourceObject.getClass(), targetClassLoader );
+        ValueType targetValueType = targetClass != null ? ValueType.forClass( targetClass ) : null;
+        if ( targetValueType == null )
+            return null;
+
+        Object targetObject = sourceValueType.rebuild( sourceObject, targetValueType, targetClassLoader, this );
+        return targetType.isInstance( targetObject ) ? (T) targetObject : null;
+    }
+
+    /**
+     * Finds the transcoder for the source class in the target class loader. The result is
+     * remembered until the registered transcoders change.
+     *
+     * @param sourceType        The source class.
+     * @param targetClassLoader The target class loader.
+     * @return The transcoder, or <code>null</code> if there is none.
+     */
+    private TranscoderBinding findTranscoder( Class<?> sourceType, ClassLoader targetClassLoader ) {
+        if ( transcoders.isEmpty() )
+            return null;
+
+        int version = transcoderVersion.get();
+        WeakIdentityMap<ClassLoader, TranscoderBinding> bindings = targetClassLoader != null
+                ? transcoderBindings.get( sourceType ) : null;
+        if ( bindings != null ) {
+            TranscoderBinding binding = bindings.get( targetClassLoader );
+            if ( binding != null && binding.version == version && binding.isValid() )
+                return binding.className != null ? binding : null;
+        }
+
+        TranscoderBinding binding = new TranscoderBinding( null, null, version );
+        for ( Class<?> type = sourceType; type != null; type = type.getSuperclass() ) {
+            Transcoder transcoder = transcoders.get( type.getName() );
+            if ( transcoder != null ) {
+                Class<?> targetClass = findClass( type.getName(), targetClassLoader );
+                if ( targetClass != null )
+                    binding = new TranscoderBinding( type.getName(), targetClass, version );
+                break;
+            }
+        }
+
+        if ( bindings != null )
+            bindings.put( targetClassLoader, binding );
+        return binding.className != null ? binding : null;
+    }
+
+    /**
+     * The class a transcoder is registered for, bound to the target class for a particular
+     * class loader.
+     */
+    private static class TranscoderBinding {
+
+        private final String className;
+
+        private final Reference<Class<?>> targetClass;
+
+        private final int version;
+
+        TranscoderBinding( String className, Class<?> targetClass, int version ) {
+            this.className = className;
+            this.targetClass = targetClass != null ? new WeakReference<Class<?>>( targetClass ) : null;
+            this.version = version;
+        }
+
+        boolean isValid() {
+            return targetClass == null || targetClass.get() != null;
+        }
+
+        Object transcode( Object sourceObject, FacadeAssistant assistant ) {
+            // Held by the registry alone, in case it has been unregistered or replaced.
+            Transcoder transcoder = assistant.transcoders.get( className );
+            Class<?> target = targetClass.get();
+            if ( transcoder == null || target == null )
+                return null;
+            return transcoder.transcode( sourceObject, target, assistant );
+        }
+    }
+
     /**
      * Returns <code>true</code> if the value is directly annotated by {@link Cachable}.
      *
@@ -378,18 +1053,7 @@ public class FacadeAssistant {
     @SuppressWarnings({"unchecked"})
     private <T> T toSerialized( Object sourceObject, Class<T> targetType, ClassLoader targetClassLoader ) {
         try {
-            // Freeze
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream( baos );
-            out.writeObject( sourceObject );
-            out.close();
-
-            // Thaw
-            ByteArrayInputStream bais = new ByteArrayInputStream( baos.toByteArray() );
-            CustomObjectInputStream in = new CustomObjectInputStream( bais, targetClassLoader );
-            Object targetObject = in.readObject();
-            in.close();
-
+            Object targetObject = serializationEngine.copy( sourceObject, targetClassLoader );
             if ( targetType.isInstance( targetObject ) )
                 return (T) targetObject;
 
@@ -406,42 +1070,222 @@ public class FacadeAssistant {
         // Localise the component type.
         componentType = findClass( componentType, targetClassLoader );
 
+        Class<?> sourceComponentType = sourceObject.getClass().getComponentType();
         int length = Array.getLength( sourceObject );
         Object targetArray = Array.newInstance( componentType, length );
-        for ( int i = 0; i < length; i++ ) {
-            Object sourceItem = Array.get( sourceObject, i );
-            Object targetItem = prepareObject( sourceItem, componentType, targetClassLoader, requireFacade );
-            Array.set( targetArray, i, targetItem );
+
+        if ( sourceComponentType.isPrimitive() && sourceComponentType == componentType ) {
+            // Primitives can only be copied.
+            System.arraycopy( sourceObject, 0, targetArray, 0, length );
+        } else if ( !sourceComponentType.isPrimitive() && !componentType.isPrimitive() ) {
+            Object[] sourceItems = (Object[]) sourceObject;
+            Object[] targetItems = (Object[]) targetArray;
+            if ( !requireFacade && componentType.isAssignableFrom( sourceComponentType )
+                    && isFinalShared( sourceComponentType, targetClassLoader ) ) {
+                // Every item is shared, so they can all be passed through at once.
+                System.arraycopy( sourceItems, 0, targetItems, 0, length );
+            } else if ( length >= parallelArrayThreshold ) {
+                ForkJoinPool pool = forkJoinPool;
+                ArrayItemsTask task = new ArrayItemsTask( sourceItems, targetItems, 0, length,
+                        Math.max( MINIMUM_ARRAY_CHUNK, length / ( pool.getParallelism() * 4 ) ),
+                        componentType, targetClassLoader, requireFacade,
+                        Thread.currentThread().getContextClassLoader() );
+                if ( ForkJoinTask.inForkJoinPool() )
+                    task.invoke();
+                else
+                    pool.invoke( task );
+            } else {
+                toArrayItems( sourceItems, targetItems, 0, length, componentType, targetClassLoader, requireFacade,
+                        null );
+            }
+        } else {
+            for ( int i = 0; i < length; i++ ) {
+                Object sourceItem = Array.get( sourceObject, i );
+                Object targetItem = prepareObject( sourceItem, componentType, targetClassLoader, requireFacade );
+                Array.set( targetArray, i, targetItem );
+            }
         }
         return targetArray;
     }
 
+    /**
+     * Converts a range of array items. How items are converted is decided once for each run of
+     * items of the same class: items whose class is shared are passed through, and facadable
+     * items are facaded directly, without going through {@link #prepareObject} again.
+     *
+     * @param sourceItems       The source items.
+     * @param targetItems       The array to put the converted items into.
+     * @param from              The first index, inclusive.
+     * @param to                The last index, exclusive.
+     * @param componentType     The target component type.
+     * @param targetClassLoader The target class loader.
+     * @param requireFacade     If <code>true</code>, shared items are facaded.
+     * @param originClassLoader The class loader the items were passed from, if known.
+     */
+    private void toArrayItems( Object[] sourceItems, Object[] targetItems, int from, int to, Class<?> componentType,
+                               ClassLoader targetClassLoader, boolean requireFacade, ClassLoader originClassLoader ) {
+        Class<?> planClass = null;
+        int plan = ITEM_CONVERT;
+        boolean cachable = false;
+        for ( int i = from; i < to; i++ ) {
+            Object sourceItem = sourceItems[i];
+            if ( sourceItem == null )
+                continue;
+            if ( sourceItem.getClass() != planClass ) {
+                planClass = sourceItem.getClass();
+                plan = planArrayItem( sourceItem, componentType, targetClassLoader, requireFacade );
+                cachable = plan == ITEM_FACADE && isCachable( sourceItem );
+            }
+
+            Object targetItem = null;
+            if ( plan == ITEM_PASS )
+                targetItem = sourceItem;
+            else if ( plan == ITEM_FACADE )
+                targetItem = toCachableFacade( sourceItem, componentType, targetClassLoader, cachable );
+            if ( targetItem == null )
+                targetItem = prepareObject( sourceItem, componentType, targetClassLoader, requireFacade, null,
+                        originClassLoader );
+            targetItems[i] = targetItem;
+        }
+    }
+
+    /**
+     * Converts a batch of items in place, for the target class loader. As with arrays, how the
+     * items are converted is only decided once for each run of items of the same class.
+     *
+     * @param items             The items.
+     * @param count             The number of items in the batch.
+     * @param targetClassLoader The target class loader.
+     * @param originClassLoader The class loader the items were passed from, or <code>null</code>
+     *                          if it is not known.
+     */
+    void prepareItems( Object[] items, int count, ClassLoader targetClassLoader, ClassLoader originClassLoader ) {
+        toArrayItems( items, items, 0, count, Object.class, targetClassLoader, false, originClassLoader );
+    }
+
+    /**
+     * Decides how array items of the same class as the item are converted, following the
+     * same steps as {@link #prepareObject}.
+     *
+     * @return {@link #ITEM_PASS}, {@link #ITEM_FACADE} or {@link #ITEM_CONVERT}.
+     */
+    private int planArrayItem( Object item, Class<?> componentType, ClassLoader targetClassLoader,
+                               boolean requireFacade ) {
+        Class<?> itemClass = item.getClass();
+        if ( itemClass.getClassLoader() == targetClassLoader )
+            return ITEM_PASS;
+        // Whether these are converted depends on what each one holds.
+        if ( isEnumCollection( itemClass ) || ( collectionViews && ( FacadeCollections.isViewType( componentType )
+                || FacadeFlows.isViewType( componentType ) ) ) )
+            return ITEM_CONVERT;
+
+        if ( isShared( item, targetClassLoader ) )
+            return requireFacade ? ITEM_CONVERT : ITEM_PASS;
+
+        // Facades are unwrapped, and a proxy class's instances may have different handlers.
+        if ( itemClass.isArray() || item instanceof Enum || Proxy.isProxyClass( itemClass )
+                || getInvocationHandler( item ) != null || findTranscoder( itemClass, targetClassLoader ) != null )
+            return ITEM_CONVERT;
+        if ( ( Object.class.equals( componentType ) || componentType.isInterface() )
+                && isFacadable( item, componentType ) )
+            return ITEM_FACADE;
+        return ITEM_CONVERT;
+    }
+
+    /**
+     * Converts a range of array items, splitting it between parallel tasks until each is no
+     * larger than the chunk size. Each range is converted with the context class loader of the
+     * thread which converts the array.
+     */
+    private class ArrayItemsTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object[] sourceItems;
+
+        private final Object[] targetItems;
+
+        private final int from;
+
+        private final int to;
+
+        private final int chunk;
+
+        private final Class<?> componentType;
+
+        private final ClassLoader targetClassLoader;
+
+        private final boolean requireFacade;
+
+        private final ClassLoader contextClassLoader;
+
+        ArrayItemsTask( Object[] sourceItems, Object[] targetItems, int from, int to, int chunk,
+                        Class<?> componentType, ClassLoader targetClassLoader, boolean requireFacade,
+                        ClassLoader contextClassLoader ) {
+            this.sourceItems = sourceItems;
+            this.targetItems = targetItems;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.componentType = componentType;
+            this.targetClassLoader = targetClassLoader;
+            this.requireFacade = requireFacade;
+            this.contextClassLoader = contextClassLoader;
+        }
+
+        @Override
+        protected void compute() {
+            if ( to - from <= chunk ) {
+                Thread thread = Thread.currentThread();
+                ClassLoader previous = thread.getContextClassLoader();
+                if ( previous != contextClassLoader )
+                    thread.setContextClassLoader( contextClassLoader );
+                try {
+                    toArrayItems( sourceItems, targetItems, from, to, componentType, targetClassLoader,
+                            requireFacade, null );
+                } finally {
+                    if ( previous != contextClassLoader )
+                        thread.setContextClassLoader( previous );
+                }
+            } else {
+                int middle = ( from + to ) >>> 1;
+                invokeAll( new ArrayItemsTask( sourceItems, targetItems, from, middle, chunk, componentType,
+                        targetClassLoader, requireFacade, contextClassLoader ),
+                        new ArrayItemsTask( sourceItems, targetItems, middle, to, chunk, componentType,
+                                targetClassLoader, requireFacade, contextClassLoader ) );
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the type is final and is the same class in the target class
+     * loader, so any instance of it is shared. EnumSets and EnumMaps are never included,
+     * since the enums they hold may not be shared.
+     *
+     * @param type              The type.
+     * @param targetClassLoader The target class loader.
+     * @return <code>true</code> if all instances of the type are shared.
+     */
+    boolean isFinalShared( Class<?> type, ClassLoader targetClassLoader ) {
+        return Modifier.isFinal( type.getModifiers() ) && !isEnumCollection( type )
+                && findClass( type, targetClassLoader ) == type;
+    }
+
     /**
      * Converts the specified object to an enum of the specified type. The
-     * object must be an instance of the same enum, either in the same or an
-     * alternate ClassLoader.
+     * object must be a constant of the same enum, either in the same or an
+     * alternate ClassLoader. Constants are matched by name, using a table
+     * which is built the first time the two enums are converted.
      *
      * @param <T>          The enum class type.
-     * @param sourceObject The source object.
+     * @param sourceObject The source enum constant.
      * @param enumType     The enum type in the target classloader.
      * @return The specified enum type.
+     * @throws FacadeException if the target enum has no constant with the same name.
      */
     @SuppressWarnings({"unchecked"})
-    private <T> T toEnum( Object sourceObject, Class<T> enumType ) {
-        try {
-            return (T) enumType.getMethod( "valueOf", String.class ).invoke( null,
-                    ( (Enum<?>) sourceObject ).name() );
-        } catch ( IllegalArgumentException e ) {
-            throw new FacadeException( "Unexpected exception: " + e.getMessage(), e );
-        } catch ( SecurityException e ) {
-            throw new FacadeException( "Unexpected exception: " + e.getMessage(), e );
-        } catch ( IllegalAccessException e ) {
-            throw new FacadeException( "Unexpected exception: " + e.getMessage(), e );
-        } catch ( InvocationTargetException e ) {
-            throw new FacadeException( "Unexpected exception: " + e.getMessage(), e );
-        } catch ( NoSuchMethodException e ) {
-            throw new FacadeException( "Unexpected exception: " + e.getMessage(), e );
-        }
+    private <T> T toEnum( Enum<?> sourceObject, Class<T> enumType ) {
+        return (T) EnumMapping.forEnums( sourceObject.getDeclaringClass(), enumType ).map( sourceObject );
     }
 
     /**
@@ -490,7 +1334,8 @@ public class FacadeAssistant {
     }
 
     private boolean isFacadable( Class<?> type, Class<? extends Annotation> facadable ) {
-        Boolean isFacadable = facadableClasses.get( type );
+        WeakIdentityMap<Class<?>, Boolean> checked = facadableClasses.get( type );
+        Boolean isFacadable = checked.get( facadable );
         if ( isFacadable == null ) {
             isFacadable = type.isAnnotationPresent( facadable );
             if ( !isFacadable ) {
@@ -504,7 +1349,8 @@ public class FacadeAssistant {
                 if ( !isFacadable && type.getSuperclass() != null )
                     isFacadable = isFacadable( type.getSuperclass(), facadable );
             }
-            facadableClasses.put( type, isFacadable );
+            // The result is the same whichever thread gets there first.
+            checked.put( facadable, isFacadable );
         }
         return isFacadable;
     }
@@ -572,18 +1418,16 @@ public class FacadeAssistant {
     /**
      * Finds the class for the provided <code>classname</code> in the
      * specified <code>targetClassLoader</code>. If none can be found,
-     * <code>null</code> is returned.
+     * <code>null</code> is returned. Both outcomes are remembered for as long as the
+     * class loader is in use.
      *
      * @param classname         The class name.
      * @param targetClassLoader The target class loader.
      * @return the target type.
+     * @see #setInitializeClasses(boolean)
      */
     public Class<?> findClass( String classname, ClassLoader targetClassLoader ) {
-        try {
-            return Class.forName( classname, true, targetClassLoader );
-        } catch ( ClassNotFoundException e ) {
-            return null;
-        }
+        return classResolver.resolve( classname, targetClassLoader, initializeClasses );
     }
 
     /**
@@ -607,6 +1451,35 @@ public class FacadeAssistant {
                 && sourceClass.getClassLoader() != targetClassLoader;
     }
 
+    /**
+     * Checks if the target type is a functional interface, such as
+     * <code>java.util.function.Consumer</code> or a plugin's own listener interface, and the
+     * object implements the equivalent interface in its own class loader. Such objects are
+     * usually lambdas, which can't be annotated with {@link Facadable}. Serializable objects
+     * are left to be copied, as they were before callbacks were facaded.
+     *
+     * @param sourceObject The object to check.
+     * @param targetType   The target type.
+     * @return <code>true</code> if the object can be facaded as the functional interface.
+     */
+    private boolean isFunctional( Object sourceObject, Class<?> targetType ) {
+        if ( !targetType.isInterface() || !FUNCTIONAL_INTERFACES.get( targetType ) )
+            return false;
+        if ( sourceObject instanceof Serializable )
+            return false;
+        Class<?> sourceType = findClass( targetType, sourceObject );
+        return sourceType != null && sourceType.isInstance( sourceObject );
+    }
+
+    private static boolean isObjectMethod( Method method ) {
+        try {
+            Object.class.getMethod( method.getName(), method.getParameterTypes() );
+            return true;
+        } catch ( NoSuchMethodException e ) {
+            return false;
+        }
+    }
+
     /**
      * Creates a facade of the specified object, if it is facadable. If not,
      * <code>null</code> is returned.
@@ -617,12 +1490,64 @@ public class FacadeAssistant {
      * @param targetClassLoader The target class loader.
      * @return The facaded object, or <code>null</code>.
      */
-    @SuppressWarnings({"unchecked"})
     private <T> T toFacade( Object facadable, Class<T> targetType, ClassLoader targetClassLoader ) {
         if ( !isFacadable( facadable, targetType ) )
             return null;
+        return createFacade( facadable, targetType, targetClassLoader );
+    }
 
-        Class<?>[] interfaces = getAllInterfaces( facadable );
+    /**
+     * Creates a facade of the specified object, implementing each of its interfaces which are
+     * available in the target class loader.
+     *
+     * @param <T>               The target type.
+     * @param facadable         The object being facaded.
+     * @param targetType        The target class.
+     * @param targetClassLoader The target class loader.
+     * @return The facaded object, or <code>null</code> if it could not be created.
+     */
+    @SuppressWarnings({"unchecked"})
+    private <T> T createFacade( Object facadable, Class<T> targetType, ClassLoader targetClassLoader ) {
+        Class<?> proxyClass = findProxyClass( facadable.getClass(), targetClassLoader );
+        if ( proxyClass != null ) {
+            InvocationHandler invocationHandler = createInvocationHandler( targetClassLoader, facadable );
+            if ( invocationHandler != null ) {
+                if ( facadeEngine == FacadeEngine.GENERATED ) {
+                    Object facade = createGeneratedFacade( targetClassLoader, proxyClass.getInterfaces(),
+                            invocationHandler );
+                    if ( facade != null )
+                        return (T) facade;
+                }
+                return (T) newProxyInstance( proxyClass, invocationHandler );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the proxy class implementing all interfaces of the source class which are
+     * available in the target class loader. The result is remembered, so the interfaces are
+     * only collected and resolved once for each source class and target class loader.
+     *
+     * @param sourceType        The source class.
+     * @param targetClassLoader The target class loader.
+     * @return The proxy class, or <code>null</code> if none of the interfaces are available.
+     */
+    private Class<?> findProxyClass( Class<?> sourceType, ClassLoader targetClassLoader ) {
+        WeakIdentityMap<ClassLoader, Object> classes = targetClassLoader != null
+                ? proxyClasses.get( sourceType ) : null;
+        if ( classes != null ) {
+            Object cached = classes.get( targetClassLoader );
+            if ( cached == NO_PROXY_CLASS )
+                return null;
+            if ( cached != null ) {
+                Class<?> proxyClass = (Class<?>) ( (Reference<?>) cached ).get();
+                if ( proxyClass != null )
+                    return proxyClass;
+            }
+        }
+
+        Class<?>[] interfaces = getAllInterfaces( sourceType );
         try {
             interfaces = toFacadeClasses( interfaces, targetClassLoader, false );
         } catch ( ClassNotFoundException e ) {
@@ -630,42 +1555,141 @@ public class FacadeAssistant {
             LOG.error( e );
         }
 
+        Class<?> proxyClass = null;
         if ( interfaces != null && interfaces.length > 0 ) {
-            InvocationHandler invocationHandler = createInvocationHandler( targetClassLoader, facadable );
-            if ( invocationHandler != null )
-                return (T) Proxy.newProxyInstance( targetClassLoader, interfaces, invocationHandler );
+            // Sort them, so every source class with the same interfaces shares one proxy class.
+            Arrays.sort( interfaces, CLASS_NAME_ORDER );
+            proxyClass = getProxyClass( targetClassLoader, interfaces );
+            getProxyClassNames( targetClassLoader, true ).add( Arrays.toString( interfaces ) );
         }
-        return null;
+
+        if ( classes != null )
+            classes.put( targetClassLoader, proxyClass != null
+                    ? new WeakReference<Class<?>>( proxyClass ) : NO_PROXY_CLASS );
+        return proxyClass;
     }
 
-    @SuppressWarnings({"unchecked"})
-    private InvocationHandler createInvocationHandler( ClassLoader targetClassLoader, Object facadable ) {
+    /**
+     * Returns the number of distinct proxy classes this assistant has created facades with in
+     * the target class loader. Every source class with the same set of interfaces available
+     * in the target class loader shares a proxy class.
+     *
+     * @param targetClassLoader The target class loader.
+     * @return The number of proxy classes.
+     */
+    public int getProxyClassCount( ClassLoader targetClassLoader ) {
+        Set<String> names = getProxyClassNames( targetClassLoader, false );
+        return names != null ? names.size() : 0;
+    }
+
+    private Set<String> getProxyClassNames( ClassLoader targetClassLoader, boolean create ) {
+        if ( targetClassLoader == null )
+            return bootstrapProxyClassNames;
+
+        Set<String> names = proxyClassNames.get( targetClassLoader );
+        if ( names == null && create ) {
+            names = newConcurrentSet();
+            Set<String> existing = proxyClassNames.putIfAbsent( targetClassLoader, names );
+            if ( existing != null )
+                names = existing;
+        }
+        return names;
+    }
+
+    private static Set<String> newConcurrentSet() {
+        return Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    }
+
+    @SuppressWarnings({"deprecation"})
+    private static Class<?> getProxyClass( ClassLoader targetClassLoader, Class<?>[] interfaces ) {
+        return Proxy.getProxyClass( targetClassLoader, interfaces );
+    }
+
+    /**
+     * Creates an instance of the proxy class through its cached constructor.
+     *
+     * @param proxyClass        The proxy class.
+     * @param invocationHandler The invocation handler.
+     * @return The new proxy.
+     */
+    private Object newProxyInstance( Class<?> proxyClass, InvocationHandler invocationHandler ) {
+        MethodHandle constructor = PROXY_CONSTRUCTORS.get( proxyClass );
+        if ( constructor == null )
+            return Proxy.newProxyInstance( proxyClass.getClassLoader(), proxyClass.getInterfaces(),
+                    invocationHandler );
         try {
-            Class<? extends InvocationHandler> handlerClass = (Class<? extends InvocationHandler>) Class
-                    .forName( FacadeInvocationHandler.class.getName(), true, targetClassLoader );
-            Constructor<? extends InvocationHandler> cnst = handlerClass.getConstructor( Object.class );
-            return cnst.newInstance( facadable );
-        } catch ( ClassNotFoundException e ) {
+            return (Object) constructor.invokeExact( invocationHandler );
+        } catch ( RuntimeException e ) {
+            throw e;
+        } catch ( Error e ) {
+            throw e;
+        } catch ( Throwable t ) {
+            throw new FacadeException( t );
+        }
+    }
+
+    /**
+     * Creates a facade from a generated class, using the {@link FacadeClassGenerator} from the
+     * same class loader as the invocation handler.
+     *
+     * @param targetClassLoader The target class loader.
+     * @param interfaces        The interfaces to implement.
+     * @param invocationHandler The invocation handler.
+     * @return The facade, or <code>null</code> if none could be generated.
+     */
+    private Object createGeneratedFacade( ClassLoader targetClassLoader, Class<?>[] interfaces,
+                                          InvocationHandler invocationHandler ) {
+        Class<?> generatorClass = findClass( FacadeClassGenerator.class, invocationHandler );
+        MethodHandle newInstance = generatorClass != null ? GENERATOR_FACTORIES.get( generatorClass ) : null;
+        if ( newInstance == null )
             return null;
-        } catch ( SecurityException e ) {
-            LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
-        } catch ( NoSuchMethodException e ) {
-            LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
-        } catch ( IllegalArgumentException e ) {
-            LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
-        } catch ( InstantiationException e ) {
-            LOG.warn( "Error while creating Facade: " + e.getMessage(), e );
-        } catch ( IllegalAccessException e ) {
-            LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
-        } catch ( InvocationTargetException e ) {
-            LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
+        try {
+            return (Object) newInstance.invokeExact( targetClassLoader, interfaces, invocationHandler );
+        } catch ( Error e ) {
+            throw e;
+        } catch ( Throwable t ) {
+            LOG.warn( "Error while creating Facade: " + t.getMessage(), t );
         }
         return null;
     }
 
-    private Class<?>[] getAllInterfaces( Object object ) {
-        Set<Class<?>> interfaces = new java.util.HashSet<Class<?>>();
-        addAllInterfaces( interfaces, object.getClass() );
+    private InvocationHandler createInvocationHandler( ClassLoader targetClassLoader, Object facadable ) {
+        InvocationHandlerFactory factory = findInvocationHandlerFactory( targetClassLoader );
+        return factory != null ? factory.create( facadable ) : null;
+    }
+
+    /**
+     * Finds the factory for the {@link FacadeInvocationHandler} visible to the target class
+     * loader. The result is remembered, including when the loader has no compatible handler.
+     *
+     * @param targetClassLoader The target class loader.
+     * @return The factory, or <code>null</code> if there is none.
+     */
+    private InvocationHandlerFactory findInvocationHandlerFactory( ClassLoader targetClassLoader ) {
+        Object cached = targetClassLoader != null ? handlerFactories.get( targetClassLoader ) : null;
+        if ( cached == NO_HANDLER_FACTORY )
+            return null;
+        if ( cached != null ) {
+            InvocationHandlerFactory factory = (InvocationHandlerFactory) ( (Reference<?>) cached ).get();
+            if ( factory != null )
+                return factory;
+        }
+
+        Class<?> handlerClass = findClass( FacadeInvocationHandler.class.getName(), targetClassLoader );
+        InvocationHandlerFactory factory = null;
+        if ( handlerClass != null && InvocationHandler.class.isAssignableFrom( handlerClass ) )
+            factory = InvocationHandlerFactory.getInstance( handlerClass );
+
+        if ( targetClassLoader != null )
+            handlerFactories.put( targetClassLoader, factory != null
+                    ? new WeakReference<InvocationHandlerFactory>( factory ) : NO_HANDLER_FACTORY );
+        return factory;
+    }
+
+    private Class<?>[] getAllInterfaces( Class<?> type ) {
+        // Depth-first, in declaration order, so the result is the same on every call.
+        Set<Class<?>> interfaces = new java.util.LinkedHashSet<Class<?>>();
+        addAllInterfaces( interfaces, type );
         return (Class<?>[]) interfaces.toArray( new Class<?>[interfaces.size()] );
     }
 
@@ -704,14 +1728,15 @@ public class FacadeAssistant {
         Class<?>[] targetInterfaces = new Class[sourceClasses.length];
         int targetIndex = 0;
         for ( Class<?> sourceClass : sourceClasses ) {
-            try {
-                targetInterfaces[targetIndex] = Class.forName( sourceClass.getName(), false,
-                        targetClassLoader );
-                targetIndex++;
-            } catch ( ClassNotFoundException e ) {
-                if ( requireClass )
-                    throw e;
+            if ( sourceClass.isPrimitive() ) {
+                targetInterfaces[targetIndex++] = sourceClass;
+                continue;
             }
+            Class<?> targetClass = classResolver.resolve( sourceClass.getName(), targetClassLoader, false );
+            if ( targetClass != null )
+                targetInterfaces[targetIndex++] = targetClass;
+            else if ( requireClass )
+                throw new ClassNotFoundException( sourceClass.getName() );
         }
 
         sourceClasses = new Class[targetIndex];
@@ -722,19 +1747,26 @@ public class FacadeAssistant {
     /**
      * Finds the cachable facade for the object, if it already exists.
      *
-     * @param object The object being facaded.
-     * @param type   The target class.
+     * @param object            The object being facaded.
+     * @param type              The target class.
+     * @param targetClassLoader The target class loader.
      * @return The facade, if it exists.
      */
-    @SuppressWarnings({"unchecked"})
-    private <T> T getCachedFacade( Object object, Class<T> type ) {
+    private <T> T getCachedFacade( Object object, Class<T> type, ClassLoader targetClassLoader ) {
+        FacadeCache cache = this.cache;
+        if ( cache instanceof LoaderAwareFacadeCache )
+            return ( (LoaderAwareFacadeCache) cache ).get( object, type, targetClassLoader );
         if ( cache != null )
             return cache.get( object, type );
         return null;
     }
 
-    private <T> void setCachedFacade( T facade, Object sourceObject, Class<T> targetType ) {
-        if ( cache != null )
+    private <T> void setCachedFacade( T facade, Object sourceObject, Class<T> targetType,
+                                      ClassLoader targetClassLoader ) {
+        FacadeCache cache = this.cache;
+        if ( cache instanceof LoaderAwareFacadeCache )
+            ( (LoaderAwareFacadeCache) cache ).set( sourceObject, facade, targetType, targetClassLoader );
+        else if ( cache != null )
             cache.set( sourceObject, facade, targetType );
     }
 
@@ -778,14 +1810,45 @@ public class FacadeAssistant {
      * @return The handler, or <code>null</code> if not found.
      */
     private <T extends InvocationHandler> T getInvocationHandler( Object object, Class<T> type ) {
-        if ( object != null && Proxy.isProxyClass( object.getClass() ) ) {
-            InvocationHandler handler = Proxy.getInvocationHandler( object );
+        if ( object != null ) {
+            InvocationHandler handler = null;
+            if ( Proxy.isProxyClass( object.getClass() ) )
+                handler = Proxy.getInvocationHandler( object );
+            else if ( GeneratedFacade.isGeneratedFacade( object ) )
+                handler = GeneratedFacade.getInvocationHandler( object );
+            else
+                handler = getGeneratedInvocationHandler( object );
+
             if ( type.isInstance( handler ) )
                 return type.cast( handler );
         }
         return null;
     }
 
+    /**
+     * Returns the invocation handler for a facade generated by a {@link FacadeClassGenerator}
+     * from another class loader.
+     *
+     * @param object The object to search.
+     * @return The handler, or <code>null</code> if the object is not a generated facade.
+     */
+    private InvocationHandler getGeneratedInvocationHandler( Object object ) {
+        Class<?> superclass = object.getClass().getSuperclass();
+        if ( superclass != null && GeneratedFacade.class.getName().equals( superclass.getName() ) ) {
+            try {
+                return (InvocationHandler) superclass.getMethod( "getInvocationHandler", Object.class )
+                        .invoke( null, object );
+            } catch ( NoSuchMethodException e ) {
+                throw new FacadeException( "Unexpected no such method exception: " + e.getMessage(), e );
+            } catch ( IllegalAccessException e ) {
+                throw new FacadeException( "Unexpected illegal access exception: " + e.getMessage(), e );
+            } catch ( InvocationTargetException e ) {
+                throw new FacadeException( "Unexpected invocation target exception: " + e.getMessage(), e );
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns the wrapped object if this is a facade, or <code>null</code> if
      * not.
@@ -852,21 +1915,16 @@ public class FacadeAssistant {
         if ( type == null || signature.findMethod( type ) == null )
             return null;
 
-        Map<MethodSignature, FacadeInfo> signatureMap = facadableMethods.get( type );
-        FacadeInfo info;
-        if ( signatureMap == null ) {
-            signatureMap = new java.util.HashMap<MethodSignature, FacadeInfo>();
-            facadableMethods.put( type, signatureMap );
-        } else {
-            info = signatureMap.get( signature );
-            // Check if the signature has already been found.
-            if ( info != null || signatureMap.containsKey( signature ) )
-                return info;
+        ConcurrentMap<MethodSignature, FacadeInfo> signatureMap = facadableMethods.get( type );
+        FacadeInfo info = signatureMap.get( signature );
+        if ( info == null ) {
+            // Not computeIfAbsent, since building the info looks up the supertypes' info.
+            info = new FacadeInfo( this, type, signature );
+            FacadeInfo existing = signatureMap.putIfAbsent( signature, info );
+            if ( existing != null )
+                info = existing;
         }
 
-        info = new FacadeInfo( type, signature );
-        signatureMap.put( signature, info );
-
         return info;
     }
 }
@@ -0,0 +1,470 @@
+package org.randombits.facade;
+
+import org.apache.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import static org.randombits.facade.ClassFileWriter.*;
+
+/**
+ * Generates concrete facade classes as an alternative to {@link java.lang.reflect.Proxy}.
+ * One class is generated per wrapped class and target class loader. Each interface method
+ * is implemented directly with its declared parameter types, and forwards to the wrapped
+ * object through a constant method handle from the method's {@link DispatchPlan}, so
+ * conversions are only applied to the parameters that need them.
+ *
+ * <p>
+ * Classes are defined as hidden classes, and so require a Java 16 or later runtime. If
+ * they are not available, or a class cannot be generated for a particular set of
+ * interfaces, {@link #newInstance(ClassLoader, Class[], InvocationHandler)} returns
+ * <code>null</code> and the caller should fall back to a proxy.
+ *
+ * @see FacadeEngine#GENERATED
+ */
+public final class FacadeClassGenerator {
+
+    private static final Logger LOG = Logger.getLogger( FacadeClassGenerator.class );
+
+    private static final String CLASS_NAME = "$Facade";
+
+    private static final String WRAPPED_FIELD = "wrapped";
+
+    private static final String HANDLE_FIELD = "handle";
+
+    private static final Method PRIVATE_LOOKUP_IN;
+
+    private static final Method DEFINE_HIDDEN_CLASS;
+
+    private static final Object NO_CLASS_OPTIONS;
+
+    private static final MethodHandle PLAN_INVOKE;
+
+    private static final MethodHandle FAIL;
+
+    /**
+     * Marks a wrapped class and class loader combination that cannot be generated.
+     */
+    private static final MethodHandle UNAVAILABLE;
+
+    private static final Method[] OBJECT_METHODS;
+
+    static {
+        Method privateLookupIn = null;
+        Method defineHiddenClass = null;
+        Object noClassOptions = null;
+        try {
+            Class<?> classOption = Class.forName( "java.lang.invoke.MethodHandles$Lookup$ClassOption" );
+            noClassOptions = Array.newInstance( classOption, 0 );
+            privateLookupIn = MethodHandles.class.getMethod( "privateLookupIn", Class.class,
+                    MethodHandles.Lookup.class );
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod( "defineHiddenClassWithClassData",
+                    byte[].class, Object.class, boolean.class, noClassOptions.getClass() );
+        } catch ( ClassNotFoundException e ) {
+            defineHiddenClass = null;
+        } catch ( NoSuchMethodException e ) {
+            defineHiddenClass = null;
+        }
+        PRIVATE_LOOKUP_IN = privateLookupIn;
+        DEFINE_HIDDEN_CLASS = defineHiddenClass;
+        NO_CLASS_OPTIONS = noClassOptions;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            PLAN_INVOKE = lookup.findVirtual( DispatchPlan.class, "invoke",
+                    MethodType.methodType( Object.class, Object.class, Object[].class ) );
+            FAIL = lookup.findStatic( FacadeClassGenerator.class, "fail",
+                    MethodType.methodType( Object.class, Throwable.class ) );
+            UNAVAILABLE = MethodHandles.constant( Object.class, null );
+            OBJECT_METHODS = new Method[]{
+                    Object.class.getMethod( "equals", Object.class ),
+                    Object.class.getMethod( "hashCode" ),
+                    Object.class.getMethod( "toString" )};
+        } catch ( NoSuchMethodException e ) {
+            throw new ExceptionInInitializerError( e );
+        } catch ( IllegalAccessException e ) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    /**
+     * The facade constructors for each wrapped class, keyed by target class loader. The
+     * constructors are only softly held, since they reference the target class loader. The
+     * wrapped class usually comes from another class loader, so they are kept in a
+     * {@link ClassCache}.
+     */
+    private static final ClassCache<Map<ClassLoader, Reference<MethodHandle>>> CONSTRUCTORS =
+            new ClassCache<Map<ClassLoader, Reference<MethodHandle>>>() {
+                @Override
+                protected Map<ClassLoader, Reference<MethodHandle>> computeValue( Class<?> type ) {
+                    return Collections.synchronizedMap( new WeakHashMap<ClassLoader, Reference<MethodHandle>>() );
+                }
+            };
+
+    private FacadeClassGenerator() {
+    }
+
+    /**
+     * Returns <code>true</code> if the runtime supports generated facade classes.
+     *
+     * @return <code>true</code> if facade classes can be generated.
+     */
+    public static boolean isAvailable() {
+        return DEFINE_HIDDEN_CLASS != null;
+    }
+
+    /**
+     * Creates a new generated facade, in the same manner as
+     * {@link java.lang.reflect.Proxy#newProxyInstance(ClassLoader, Class[], InvocationHandler)}.
+     *
+     * @param loader     The target class loader.
+     * @param interfaces The interfaces to implement, from the target class loader.
+     * @param handler    The {@link FacadeInvocationHandler} for the wrapped object.
+     * @return The facade, or <code>null</code> if a class could not be generated.
+     */
+    public static Object newInstance( ClassLoader loader, Class<?>[] interfaces, InvocationHandler handler ) {
+        if ( !isAvailable() || !( handler instanceof FacadeInvocationHandler ) )
+            return null;
+
+        FacadeInvocationHandler facadeHandler = (FacadeInvocationHandler) handler;
+        MethodHandle constructor = findConstructor( facadeHandler.getWrapped().getClass(), loader, interfaces );
+        if ( constructor == null )
+            return null;
+
+        try {
+            return (Object) constructor.invokeExact( facadeHandler );
+        } catch ( RuntimeException e ) {
+            throw e;
+        } catch ( Error e ) {
+            throw e;
+        } catch ( Throwable e ) {
+            throw new FacadeException( e );
+        }
+    }
+
+    private static MethodHandle findConstructor( Class<?> wrappedClass, ClassLoader loader, Class<?>[] interfaces ) {
+        Map<ClassLoader, Reference<MethodHandle>> constructors = CONSTRUCTORS.get( wrappedClass );
+        Reference<MethodHandle> reference = constructors.get( loader );
+        MethodHandle constructor = reference != null ? reference.get() : null;
+        if ( constructor == null ) {
+            constructor = generate( wrappedClass, interfaces );
+            if ( constructor == null )
+                constructor = UNAVAILABLE;
+            constructors.put( loader, new SoftReference<MethodHandle>( constructor ) );
+        }
+        return constructor != UNAVAILABLE ? constructor : null;
+    }
+
+    /**
+     * Generates a facade class for the wrapped class and returns its constructor.
+     *
+     * @param wrappedClass The class of the wrapped object.
+     * @param interfaces   The interfaces to implement.
+     * @return The constructor, of type <code>(FacadeInvocationHandler)Object</code>, or
+     *         <code>null</code> if the class could not be generated.
+     */
+    private static MethodHandle generate( Class<?> wrappedClass, Class<?>[] interfaces ) {
+        Collection<Method> methods = collectMethods( interfaces );
+        if ( methods == null )
+            return null;
+
+        MethodHandles.Lookup lookup = findLookup( interfaces, methods );
+        if ( lookup == null )
+            return null;
+
+        Object[] handles = new Object[methods.size()];
+        int i = 0;
+        for ( Method method : methods )
+            handles[i++] = createHandle( wrappedClass, method );
+
+        String packageName = lookup.lookupClass().getName();
+        packageName = packageName.substring( 0, packageName.lastIndexOf( '.' ) + 1 );
+        byte[] classFile = writeClass( packageName.replace( '.', '/' ) + CLASS_NAME, interfaces, methods );
+        if ( classFile == null )
+            return null;
+
+        try {
+            MethodHandles.Lookup facadeLookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke( lookup,
+                    classFile, handles, true, NO_CLASS_OPTIONS );
+            return facadeLookup.findConstructor( facadeLookup.lookupClass(),
+                    MethodType.methodType( void.class, FacadeInvocationHandler.class ) )
+                    .asType( MethodType.methodType( Object.class, FacadeInvocationHandler.class ) );
+        } catch ( InvocationTargetException e ) {
+            LOG.warn( "Unable to generate a facade class for " + wrappedClass.getName() + ": "
+                    + e.getTargetException().getMessage(), e.getTargetException() );
+        } catch ( IllegalAccessException e ) {
+            LOG.warn( "Unable to generate a facade class for " + wrappedClass.getName() + ": " + e.getMessage(), e );
+        } catch ( NoSuchMethodException e ) {
+            LOG.warn( "Unable to generate a facade class for " + wrappedClass.getName() + ": " + e.getMessage(), e );
+        }
+        return null;
+    }
+
+    /**
+     * Collects the methods to implement, keyed by name and parameter types.
+     *
+     * @param interfaces The interfaces.
+     * @return The methods, or <code>null</code> if two interfaces have conflicting return types.
+     */
+    private static Collection<Method> collectMethods( Class<?>[] interfaces ) {
+        Map<String, Method> methods = new LinkedHashMap<String, Method>();
+        for ( Method method : OBJECT_METHODS )
+            methods.put( method.getName() + descriptor( Void.TYPE, method.getParameterTypes() ), method );
+
+        for ( Class<?> anInterface : interfaces ) {
+            for ( Method method : anInterface.getMethods() ) {
+                if ( Modifier.isStatic( method.getModifiers() ) )
+                    continue;
+                String key = method.getName() + descriptor( Void.TYPE, method.getParameterTypes() );
+                Method existing = methods.get( key );
+                if ( existing == null )
+                    methods.put( key, method );
+                else if ( existing.getReturnType() != method.getReturnType() )
+                    return null;
+            }
+        }
+        return methods.values();
+    }
+
+    /**
+     * Finds a lookup to define the facade class with. The lookup class must be able to see
+     * all the classes the facade refers to, and have access to the interfaces and any return
+     * types which need casting.
+     *
+     * @param interfaces The interfaces.
+     * @param methods    The methods.
+     * @return The lookup, or <code>null</code> if no suitable lookup class exists.
+     */
+    private static MethodHandles.Lookup findLookup( Class<?>[] interfaces, Collection<Method> methods ) {
+        Set<Class<?>> referenced = new LinkedHashSet<Class<?>>();
+        Collections.addAll( referenced, interfaces );
+        referenced.add( GeneratedFacade.class );
+        referenced.add( FacadeInvocationHandler.class );
+        for ( Method method : methods ) {
+            Collections.addAll( referenced, method.getParameterTypes() );
+            referenced.add( method.getReturnType() );
+        }
+
+        List<Class<?>> candidates = new ArrayList<Class<?>>();
+        candidates.add( GeneratedFacade.class );
+        Collections.addAll( candidates, interfaces );
+        for ( Class<?> candidate : candidates ) {
+            if ( isUsableLookupClass( candidate, referenced, interfaces, methods ) ) {
+                MethodHandles.Lookup lookup = privateLookupIn( candidate );
+                if ( lookup != null )
+                    return lookup;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUsableLookupClass( Class<?> candidate, Set<Class<?>> referenced, Class<?>[] interfaces,
+                                                Collection<Method> methods ) {
+        ClassLoader loader = candidate.getClassLoader();
+        for ( Class<?> type : referenced ) {
+            while ( type.isArray() )
+                type = type.getComponentType();
+            if ( !type.isPrimitive() && FacadeAssistant.getInstance().findClass( type.getName(), loader ) != type )
+                return false;
+        }
+        for ( Class<?> anInterface : interfaces ) {
+            if ( !isAccessible( anInterface, candidate ) )
+                return false;
+        }
+        for ( Method method : methods ) {
+            if ( !isAccessible( method.getReturnType(), candidate ) )
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isAccessible( Class<?> type, Class<?> lookupClass ) {
+        while ( type.isArray() )
+            type = type.getComponentType();
+        return type.isPrimitive() || Modifier.isPublic( type.getModifiers() )
+                || type.getClassLoader() == lookupClass.getClassLoader()
+                && getPackageName( type ).equals( getPackageName( lookupClass ) );
+    }
+
+    private static String getPackageName( Class<?> type ) {
+        String name = type.getName();
+        return name.substring( 0, Math.max( 0, name.lastIndexOf( '.' ) ) );
+    }
+
+    private static MethodHandles.Lookup privateLookupIn( Class<?> lookupClass ) {
+        if ( lookupClass == GeneratedFacade.class )
+            return MethodHandles.lookup();
+        try {
+            return (MethodHandles.Lookup) PRIVATE_LOOKUP_IN.invoke( null, lookupClass, MethodHandles.lookup() );
+        } catch ( IllegalAccessException e ) {
+            return null;
+        } catch ( InvocationTargetException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the handle for a single facade method, taking the wrapped object followed by
+     * the method's parameters, with reference types erased.
+     *
+     * @param wrappedClass The wrapped class.
+     * @param method       The facade method.
+     * @return The method handle.
+     */
+    private static MethodHandle createHandle( Class<?> wrappedClass, Method method ) {
+        MethodType type = erase( method );
+        try {
+            DispatchPlan plan = FacadeInvocationHandler.findPlan( wrappedClass, method );
+            MethodHandle handle = plan.getTypedHandle();
+            if ( handle == null ) {
+                handle = PLAN_INVOKE.bindTo( plan ).asCollector( Object[].class, method.getParameterTypes().length );
+            }
+            return handle.asType( type );
+        } catch ( NoSuchMethodException e ) {
+            return failure( type, e );
+        } catch ( ClassNotFoundException e ) {
+            return failure( type, e );
+        }
+    }
+
+    /**
+     * Returns a handle which throws a {@link FacadeException} when invoked, matching the
+     * behaviour of a proxy facade for a method which cannot be dispatched.
+     *
+     * @param type  The handle type.
+     * @param cause The cause.
+     * @return The handle.
+     */
+    private static MethodHandle failure( MethodType type, Throwable cause ) {
+        MethodHandle handle = MethodHandles.insertArguments( FAIL, 0, cause );
+        return MethodHandles.dropArguments( handle, 0, type.parameterList() ).asType( type );
+    }
+
+    private static Object fail( Throwable cause ) {
+        throw new FacadeException( cause );
+    }
+
+    private static MethodType erase( Method method ) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Class<?>[] erased = new Class<?>[parameterTypes.length + 1];
+        erased[0] = Object.class;
+        for ( int i = 0; i < parameterTypes.length; i++ )
+            erased[i + 1] = erase( parameterTypes[i] );
+        return MethodType.methodType( erase( method.getReturnType() ), erased );
+    }
+
+    private static Class<?> erase( Class<?> type ) {
+        return type.isPrimitive() ? type : Object.class;
+    }
+
+    /**
+     * Writes the facade class file. Each method loads its constant handle, the wrapped
+     * object and its own parameters, then invokes the handle and returns the result.
+     *
+     * @param className  The internal name of the class.
+     * @param interfaces The interfaces.
+     * @param methods    The methods to implement.
+     * @return The class file, or <code>null</code> if a method has too many parameters.
+     */
+    private static byte[] writeClass( String className, Class<?>[] interfaces, Collection<Method> methods ) {
+        List<String> interfaceNames = new ArrayList<String>();
+        for ( Class<?> anInterface : interfaces )
+            interfaceNames.add( internalName( anInterface ) );
+
+        String superName = internalName( GeneratedFacade.class );
+        String handlerName = internalName( FacadeInvocationHandler.class );
+        String handleDescriptor = descriptor( MethodHandle.class );
+        String objectDescriptor = descriptor( Object.class );
+
+        ClassFileWriter writer = new ClassFileWriter( ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC,
+                className, superName, interfaceNames );
+        writer.addField( ACC_PRIVATE | ACC_FINAL, WRAPPED_FIELD, objectDescriptor );
+        int wrappedField = writer.fieldConstant( className, WRAPPED_FIELD, objectDescriptor );
+
+        // Constructor
+        String constructorDescriptor = descriptor( Void.TYPE, FacadeInvocationHandler.class );
+        writer.addMethod( ACC_PUBLIC, "<init>", constructorDescriptor, new Code( 2 )
+                .op( ALOAD_0, 1 )
+                .op( ALOAD_0 + 1, 1 )
+                .op2( INVOKESPECIAL, writer.methodConstant( superName, "<init>", constructorDescriptor ), -2 )
+                .op( ALOAD_0, 1 )
+                .op( ALOAD_0 + 1, 1 )
+                .op2( INVOKEVIRTUAL, writer.methodConstant( handlerName, "getWrapped",
+                        descriptor( Object.class, new Class<?>[0] ) ), 0 )
+                .op2( PUTFIELD, wrappedField, -2 )
+                .op( RETURN, 0 ) );
+
+        // Static initialiser, which loads the handles from the class data.
+        Code clinit = new Code( 1 )
+                .op2( INVOKESTATIC, writer.methodConstant( internalName( MethodHandles.class ), "lookup",
+                        descriptor( MethodHandles.Lookup.class, new Class<?>[0] ) ), 1 )
+                .ldc( writer.stringConstant( "_" ) )
+                .ldc( writer.classConstant( internalName( Object[].class ) ) )
+                .op2( INVOKESTATIC, writer.methodConstant( internalName( MethodHandles.class ), "classData",
+                        descriptor( Object.class, MethodHandles.Lookup.class, String.class, Class.class ) ), -2 )
+                .op2( CHECKCAST, writer.classConstant( internalName( Object[].class ) ), 0 )
+                .op( ASTORE_0, -1 );
+
+        int index = 0;
+        for ( Method method : methods ) {
+            String handleName = HANDLE_FIELD + index;
+            int handleField = writer.fieldConstant( className, handleName, handleDescriptor );
+            writer.addField( ACC_PRIVATE | ACC_STATIC | ACC_FINAL, handleName, handleDescriptor );
+            clinit.op( ALOAD_0, 1 )
+                    .push( index )
+                    .op( AALOAD, -1 )
+                    .op2( CHECKCAST, writer.classConstant( internalName( MethodHandle.class ) ), 0 )
+                    .op2( PUTSTATIC, handleField, -1 );
+
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            Class<?> returnType = method.getReturnType();
+            int locals = 1;
+            for ( Class<?> parameterType : parameterTypes )
+                locals += slots( parameterType );
+            if ( locals > 255 )
+                return null;
+
+            Code code = new Code( locals )
+                    .op2( GETSTATIC, handleField, 1 )
+                    .op( ALOAD_0, 1 )
+                    .op2( GETFIELD, wrappedField, 0 );
+            int slot = 1;
+            for ( Class<?> parameterType : parameterTypes ) {
+                code.op1( loadOpcode( parameterType ), slot, slots( parameterType ) );
+                slot += slots( parameterType );
+            }
+            MethodType erased = erase( method );
+            code.op2( INVOKEVIRTUAL, writer.methodConstant( internalName( MethodHandle.class ), "invokeExact",
+                    erased.toMethodDescriptorString() ), slots( returnType ) - 1 - locals );
+            if ( !returnType.isPrimitive() && returnType != Object.class )
+                code.op2( CHECKCAST, writer.classConstant( internalName( returnType ) ), 0 );
+            code.op( returnOpcode( returnType ), -slots( returnType ) );
+
+            writer.addMethod( ACC_PUBLIC | ACC_FINAL, method.getName(),
+                    descriptor( returnType, parameterTypes ), code );
+            index++;
+        }
+
+        clinit.op( RETURN, 0 );
+        writer.addMethod( ACC_STATIC, "<clinit>", "()V", clinit );
+
+        return writer.toByteArray();
+    }
+}
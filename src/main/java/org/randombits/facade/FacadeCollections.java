@@ -0,0 +1,810 @@
+package org.randombits.facade;
+
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy views of collections from another class loader. Each element is converted with
+ * {@link FacadeAssistant#prepareObject(Object, Class, ClassLoader)} when it is read, rather
+ * than when the collection is passed, and the conversion is remembered by identity for the
+ * life of the view. Changes made through a view are written through to the original
+ * collection.
+ * <p/>
+ * Elements written through a view are converted back for the original collection's class
+ * loader. When the collection is from the bootstrap class loader, as the <code>java.util</code>
+ * collections are, the class loader it was passed from is used instead. If that is not known
+ * either, facades are unwrapped and library objects such as strings are stored as they are,
+ * but writing any other element throws an {@link UnsupportedOperationException}, since it
+ * could not be converted.
+ * <p/>
+ * Iterators and iterables are streamed: their elements are converted as they are read, but
+ * are not remembered, so a traversal of any length uses a fixed amount of memory. If the
+ * assistant has an iterator batch size greater than one, elements are read ahead and
+ * converted in batches of that size.
+ * <p/>
+ * Streams and spliterators are streamed in the same way. A stream view is a new stream over
+ * a view of the original stream's spliterator, so splitting a parallel stream splits the
+ * original source, and each element is converted by the thread which processes it.
+ */
+final class FacadeCollections {
+
+    private FacadeCollections() {}
+
+    /**
+     * Returns <code>true</code> if a view can be created for the target type.
+     *
+     * @param targetType The target type.
+     * @return <code>true</code> if the target type is {@link Collection}, {@link List},
+     *         {@link Set}, {@link Map}, {@link Iterable}, {@link Iterator}, {@link Stream} or
+     *         {@link Spliterator}.
+     */
+    public static boolean isViewType( Class<?> targetType ) {
+        return targetType == Collection.class || targetType == List.class || targetType == Set.class
+                || targetType == Map.class || targetType == Iterable.class || targetType == Iterator.class
+                || targetType == Stream.class || targetType == Spliterator.class;
+    }
+
+    /**
+     * Returns a view of the collection, map, iterable, iterator, stream or spliterator for the
+     * target class loader.
+     *
+     * @param source            The object to view, which must be an instance of the target type.
+     * @param targetType        The target type, which must be a view type.
+     * @param targetClassLoader The target class loader.
+     * @param originClassLoader The class loader the object was passed from, or <code>null</code>
+     *                          if it is not known.
+     * @param assistant         The assistant to convert elements with.
+     * @return The view.
+     * @see #isViewType(Class)
+     */
+    @SuppressWarnings({"unchecked"})
+    public static Object toView( Object source, Class<?> targetType, ClassLoader targetClassLoader,
+                                 ClassLoader originClassLoader, FacadeAssistant assistant ) {
+        if ( source instanceof View ) {
+            // Don't wrap a view in another view, but view the original collection instead.
+            Converter converter = ( (View) source ).getConverter();
+            if ( converter.targetClassLoader == targetClassLoader )
+                return source;
+            source = ( (View) source ).getSource();
+            if ( converter.sourceClassLoader != null && converter.sourceClassLoader == targetClassLoader )
+                return source;
+        }
+
+        ClassLoader sourceClassLoader = source.getClass().getClassLoader();
+        if ( sourceClassLoader == null )
+            sourceClassLoader = originClassLoader;
+        if ( targetType == Iterator.class ) {
+            Converter converter = new Converter( sourceClassLoader, targetClassLoader, assistant, false );
+            return toIteratorView( (Iterator<Object>) source, converter );
+        }
+        if ( targetType == Iterable.class ) {
+            Converter converter = new Converter( sourceClassLoader, targetClassLoader, assistant, false );
+            return new IterableView( (Iterable<Object>) source, converter );
+        }
+        if ( targetType == Spliterator.class ) {
+            Converter converter = new Converter( sourceClassLoader, targetClassLoader, assistant, false );
+            return new SpliteratorView( (Spliterator<Object>) source, converter );
+        }
+        if ( targetType == Stream.class ) {
+            Converter converter = new Converter( sourceClassLoader, targetClassLoader, assistant, false );
+            return toStreamView( (Stream<Object>) source, converter );
+        }
+
+        Converter converter = new Converter( sourceClassLoader, targetClassLoader, assistant, true );
+        if ( targetType == Map.class )
+            return new MapView( (Map<Object, Object>) source, converter );
+        if ( targetType == List.class ) {
+            if ( source instanceof RandomAccess )
+                return new RandomAccessListView( (List<Object>) source, converter );
+            return new ListView( (List<Object>) source, converter );
+        }
+        if ( targetType == Set.class )
+            return new SetView( (Set<Object>) source, converter );
+        return new CollectionView( (Collection<Object>) source, converter );
+    }
+
+    private static Iterator<Object> toIteratorView( Iterator<Object> source, Converter converter ) {
+        int batchSize = converter.assistant.getIteratorBatchSize();
+        if ( batchSize > 1 )
+            return new BatchIteratorView( source, converter, batchSize );
+        return new IteratorView( source, converter );
+    }
+
+    /**
+     * Returns a stream over a view of the source stream's spliterator. The source stream is
+     * consumed, but its elements are not read until the new stream is.
+     */
+    private static Stream<Object> toStreamView( final Stream<Object> source, Converter converter ) {
+        Stream<Object> view = StreamSupport.stream( new SpliteratorView( source.spliterator(), converter ),
+                source.isParallel() );
+        return view.onClose( new Runnable() {
+            public void run() {
+                source.close();
+            }
+        } );
+    }
+
+    /**
+     * Implemented by each view, so views are not wrapped in further views.
+     */
+    private interface View {
+
+        Object getSource();
+
+        Converter getConverter();
+    }
+
+    /**
+     * Converts elements in each direction, optionally remembering the elements it has
+     * converted.
+     */
+    private static class Converter {
+
+        private final ClassLoader sourceClassLoader;
+
+        private final ClassLoader targetClassLoader;
+
+        private final FacadeAssistant assistant;
+
+        /**
+         * The converted elements, keyed by the original element. A converted element may hold
+         * its original strongly, so entries last as long as the view.
+         */
+        private final WeakIdentityMap<Object, Object> converted;
+
+        Converter( ClassLoader sourceClassLoader, ClassLoader targetClassLoader, FacadeAssistant assistant,
+                   boolean remember ) {
+            this.sourceClassLoader = sourceClassLoader;
+            this.targetClassLoader = targetClassLoader;
+            this.assistant = assistant;
+            this.converted = remember ? new WeakIdentityMap<Object, Object>() : null;
+        }
+
+        /**
+         * Converts an element read from the source collection.
+         */
+        Object toTarget( Object element ) {
+            if ( element == null )
+                return null;
+            if ( converted == null )
+                return prepareTarget( element );
+
+            Object target = converted.get( element );
+            if ( target == null ) {
+                target = prepareTarget( element );
+                if ( target != element ) {
+                    Object existing = converted.putIfAbsent( element, target );
+                    if ( existing != null )
+                        target = existing;
+                }
+            }
+            return target;
+        }
+
+        private Object prepareTarget( Object element ) {
+            return assistant.prepareObject( element, Object.class, targetClassLoader, false, null,
+                    sourceClassLoader );
+        }
+
+        /**
+         * Converts an element being written to the source collection.
+         *
+         * @throws UnsupportedOperationException if the element can't be converted, because the
+         *                                       source class loader is not known.
+         */
+        Object toSource( Object element ) {
+            Object source = toSourceKey( element );
+            if ( sourceClassLoader == null && source == element && element != null
+                    && element.getClass().getClassLoader() != null )
+                throw new UnsupportedOperationException( "Unable to write " + element.getClass().getName()
+                        + " to a collection from an unknown class loader" );
+            return source;
+        }
+
+        /**
+         * Converts an element being looked up in, or removed from, the source collection. If the
+         * source class loader is not known, elements which can't be converted are looked up as
+         * they are, and so are not found.
+         */
+        Object toSourceKey( Object element ) {
+            if ( element == null )
+                return null;
+            if ( sourceClassLoader != null )
+                return assistant.prepareObject( element, Object.class, sourceClassLoader, false, null,
+                        targetClassLoader );
+
+            Object wrapped = assistant.getWrapped( element );
+            return wrapped != null ? wrapped : element;
+        }
+    }
+
+    private static class CollectionView extends AbstractCollection<Object> implements View {
+
+        private final Collection<Object> source;
+
+        private final Converter converter;
+
+        CollectionView( Collection<Object> source, Converter converter ) {
+            this.source = source;
+            this.converter = converter;
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        public Converter getConverter() {
+            return converter;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new IteratorView( source.iterator(), converter );
+        }
+
+        @Override
+        public int size() {
+            return source.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return source.isEmpty();
+        }
+
+        @Override
+        public boolean contains( Object o ) {
+            return source.contains( converter.toSourceKey( o ) );
+        }
+
+        @Override
+        public boolean add( Object o ) {
+            return source.add( converter.toSource( o ) );
+        }
+
+        @Override
+        public boolean remove( Object o ) {
+            return source.remove( converter.toSourceKey( o ) );
+        }
+
+        @Override
+        public void clear() {
+            source.clear();
+        }
+    }
+
+    private static class SetView extends AbstractSet<Object> implements View {
+
+        private final Set<Object> source;
+
+        private final Converter converter;
+
+        SetView( Set<Object> source, Converter converter ) {
+            this.source = source;
+            this.converter = converter;
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        public Converter getConverter() {
+            return converter;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new IteratorView( source.iterator(), converter );
+        }
+
+        @Override
+        public int size() {
+            return source.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return source.isEmpty();
+        }
+
+        @Override
+        public boolean contains( Object o ) {
+            return source.contains( converter.toSourceKey( o ) );
+        }
+
+        @Override
+        public boolean add( Object o ) {
+            return source.add( converter.toSource( o ) );
+        }
+
+        @Override
+        public boolean remove( Object o ) {
+            return source.remove( converter.toSourceKey( o ) );
+        }
+
+        @Override
+        public void clear() {
+            source.clear();
+        }
+    }
+
+    private static class ListView extends AbstractList<Object> implements View {
+
+        private final List<Object> source;
+
+        private final Converter converter;
+
+        ListView( List<Object> source, Converter converter ) {
+            this.source = source;
+            this.converter = converter;
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        public Converter getConverter() {
+            return converter;
+        }
+
+        @Override
+        public Object get( int index ) {
+            return converter.toTarget( source.get( index ) );
+        }
+
+        @Override
+        public Object set( int index, Object element ) {
+            return converter.toTarget( source.set( index, converter.toSource( element ) ) );
+        }
+
+        @Override
+        public void add( int index, Object element ) {
+            source.add( index, converter.toSource( element ) );
+        }
+
+        @Override
+        public Object remove( int index ) {
+            return converter.toTarget( source.remove( index ) );
+        }
+
+        @Override
+        public int size() {
+            return source.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return source.isEmpty();
+        }
+
+        @Override
+        public boolean contains( Object o ) {
+            return source.contains( converter.toSourceKey( o ) );
+        }
+
+        @Override
+        public int indexOf( Object o ) {
+            return source.indexOf( converter.toSourceKey( o ) );
+        }
+
+        @Override
+        public int lastIndexOf( Object o ) {
+            return source.lastIndexOf( converter.toSourceKey( o ) );
+        }
+
+        @Override
+        public boolean remove( Object o ) {
+            return source.remove( converter.toSourceKey( o ) );
+        }
+
+        @Override
+        public void clear() {
+            source.clear();
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return listIterator();
+        }
+
+        @Override
+        public ListIterator<Object> listIterator( int index ) {
+            return new ListIteratorView( source.listIterator( index ), converter );
+        }
+
+        @Override
+        public List<Object> subList( int fromIndex, int toIndex ) {
+            List<Object> subList = source.subList( fromIndex, toIndex );
+            if ( subList instanceof RandomAccess )
+                return new RandomAccessListView( subList, converter );
+            return new ListView( subList, converter );
+        }
+    }
+
+    private static class RandomAccessListView extends ListView implements RandomAccess {
+
+        RandomAccessListView( List<Object> source, Converter converter ) {
+            super( source, converter );
+        }
+    }
+
+    private static class MapView extends AbstractMap<Object, Object> implements View {
+
+        private final Map<Object, Object> source;
+
+        private final Converter converter;
+
+        private Set<Map.Entry<Object, Object>> entrySet;
+
+        MapView( Map<Object, Object> source, Converter converter ) {
+            this.source = source;
+            this.converter = converter;
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        public Converter getConverter() {
+            return converter;
+        }
+
+        @Override
+        public int size() {
+            return source.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return source.isEmpty();
+        }
+
+        @Override
+        public boolean containsKey( Object key ) {
+            return source.containsKey( converter.toSourceKey( key ) );
+        }
+
+        @Override
+        public boolean containsValue( Object value ) {
+            return source.containsValue( converter.toSourceKey( value ) );
+        }
+
+        @Override
+        public Object get( Object key ) {
+            return converter.toTarget( source.get( converter.toSourceKey( key ) ) );
+        }
+
+        @Override
+        public Object put( Object key, Object value ) {
+            return converter.toTarget( source.put( converter.toSource( key ), converter.toSource( value ) ) );
+        }
+
+        @Override
+        public Object remove( Object key ) {
+            return converter.toTarget( source.remove( converter.toSourceKey( key ) ) );
+        }
+
+        @Override
+        public void clear() {
+            source.clear();
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            if ( entrySet == null ) {
+                entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+                    @Override
+                    public Iterator<Map.Entry<Object, Object>> iterator() {
+                        final Iterator<Map.Entry<Object, Object>> entries = source.entrySet().iterator();
+                        return new Iterator<Map.Entry<Object, Object>>() {
+                            public boolean hasNext() {
+                                return entries.hasNext();
+                            }
+
+                            public Map.Entry<Object, Object> next() {
+                                return new EntryView( entries.next(), converter );
+                            }
+
+                            public void remove() {
+                                entries.remove();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return source.size();
+                    }
+
+                    @Override
+                    public void clear() {
+                        source.clear();
+                    }
+                };
+            }
+            return entrySet;
+        }
+    }
+
+    private static class EntryView implements Map.Entry<Object, Object> {
+
+        private final Map.Entry<Object, Object> source;
+
+        private final Converter converter;
+
+        EntryView( Map.Entry<Object, Object> source, Converter converter ) {
+            this.source = source;
+            this.converter = converter;
+        }
+
+        public Object getKey() {
+            return converter.toTarget( source.getKey() );
+        }
+
+        public Object getValue() {
+            return converter.toTarget( source.getValue() );
+        }
+
+        public Object setValue( Object value ) {
+            return converter.toTarget( source.setValue( converter.toSource( value ) ) );
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( !( obj instanceof Map.Entry ) )
+                return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) obj;
+            Object key = getKey();
+            Object value = getValue();
+            return ( key == null ? entry.getKey() == null : key.equals( entry.getKey() ) )
+                    && ( value == null ? entry.getValue() == null : value.equals( entry.getValue() ) );
+        }
+
+        @Override
+        public int hashCode() {
+            Object key = getKey();
+            Object value = getValue();
+            return ( key == null ? 0 : key.hashCode() ) ^ ( value == null ? 0 : value.hashCode() );
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private static class IterableView implements Iterable<Object>, View {
+
+        private final Iterable<Object> source;
+
+        private final Converter converter;
+
+        IterableView( Iterable<Object> source, Converter converter ) {
+            this.source = source;
+            this.converter = converter;
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        public Converter getConverter() {
+            return converter;
+        }
+
+        public Iterator<Object> iterator() {
+            return toIteratorView( source.iterator(), converter );
+        }
+    }
+
+    private static class IteratorView implements Iterator<Object>, View {
+
+        private final Iterator<Object> source;
+
+        final Converter converter;
+
+        IteratorView( Iterator<Object> source, Converter converter ) {
+            this.source = source;
+            this.converter = converter;
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        public Converter getConverter() {
+            return converter;
+        }
+
+        public boolean hasNext() {
+            return source.hasNext();
+        }
+
+        public Object next() {
+            return converter.toTarget( source.next() );
+        }
+
+        public void remove() {
+            source.remove();
+        }
+    }
+
+    /**
+     * Reads elements ahead from the source iterator and converts them a batch at a time, deciding
+     * how to convert them once for each run of elements of the same class, as arrays are.
+     * Elements are released as soon as they are returned, so only one batch is held.
+     */
+    private static class BatchIteratorView implements Iterator<Object>, View {
+
+        private final Iterator<Object> source;
+
+        private final Converter converter;
+
+        private final Object[] batch;
+
+        private int position;
+
+        private int count;
+
+        BatchIteratorView( Iterator<Object> source, Converter converter, int batchSize ) {
+            this.source = source;
+            this.converter = converter;
+            this.batch = new Object[batchSize];
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        public Converter getConverter() {
+            return converter;
+        }
+
+        public boolean hasNext() {
+            return position < count || fill();
+        }
+
+        public Object next() {
+            if ( !hasNext() )
+                throw new NoSuchElementException();
+            Object element = batch[position];
+            batch[position++] = null;
+            return element;
+        }
+
+        /**
+         * The source iterator has already moved past the element, so it can't be removed.
+         */
+        public void remove() {
+            throw new UnsupportedOperationException( "Elements can't be removed while reading ahead." );
+        }
+
+        private boolean fill() {
+            position = 0;
+            count = 0;
+            while ( count < batch.length && source.hasNext() )
+                batch[count++] = source.next();
+            converter.assistant.prepareItems( batch, count, converter.targetClassLoader, converter.sourceClassLoader );
+            return count > 0;
+        }
+    }
+
+    /**
+     * Converts each element as it is passed to the action. Splits of the source are wrapped in
+     * views of their own, so each can be processed on a different thread.
+     */
+    private static class SpliteratorView implements Spliterator<Object>, View {
+
+        /**
+         * The orderings of the converted elements are not known to match the originals, and
+         * distinct originals may convert to equal elements.
+         */
+        private static final int UNKNOWN_CHARACTERISTICS = SORTED | DISTINCT;
+
+        private final Spliterator<Object> source;
+
+        private final Converter converter;
+
+        SpliteratorView( Spliterator<Object> source, Converter converter ) {
+            this.source = source;
+            this.converter = converter;
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        public Converter getConverter() {
+            return converter;
+        }
+
+        public boolean tryAdvance( Consumer<? super Object> action ) {
+            return source.tryAdvance( new ConvertingConsumer( action, converter ) );
+        }
+
+        public void forEachRemaining( Consumer<? super Object> action ) {
+            source.forEachRemaining( new ConvertingConsumer( action, converter ) );
+        }
+
+        public Spliterator<Object> trySplit() {
+            Spliterator<Object> split = source.trySplit();
+            return split != null ? new SpliteratorView( split, converter ) : null;
+        }
+
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        public long getExactSizeIfKnown() {
+            return source.getExactSizeIfKnown();
+        }
+
+        public int characteristics() {
+            return source.characteristics() & ~UNKNOWN_CHARACTERISTICS;
+        }
+    }
+
+    private static class ConvertingConsumer implements Consumer<Object> {
+
+        private final Consumer<? super Object> action;
+
+        private final Converter converter;
+
+        ConvertingConsumer( Consumer<? super Object> action, Converter converter ) {
+            this.action = action;
+            this.converter = converter;
+        }
+
+        public void accept( Object element ) {
+            action.accept( converter.toTarget( element ) );
+        }
+    }
+
+    private static class ListIteratorView extends IteratorView implements ListIterator<Object> {
+
+        private final ListIterator<Object> source;
+
+        ListIteratorView( ListIterator<Object> source, Converter converter ) {
+            super( source, converter );
+            this.source = source;
+        }
+
+        public boolean hasPrevious() {
+            return source.hasPrevious();
+        }
+
+        public Object previous() {
+            return converter.toTarget( source.previous() );
+        }
+
+        public int nextIndex() {
+            return source.nextIndex();
+        }
+
+        public int previousIndex() {
+            return source.previousIndex();
+        }
+
+        public void set( Object o ) {
+            source.set( converter.toSource( o ) );
+        }
+
+        public void add( Object o ) {
+            source.add( converter.toSource( o ) );
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.randombits.facade;
+
+/**
+ * The mechanisms available for creating facade objects.
+ *
+ * @see FacadeAssistant#setFacadeEngine(FacadeEngine)
+ */
+public enum FacadeEngine {
+    /**
+     * Facades are {@link java.lang.reflect.Proxy} instances, with every call passing through
+     * {@link FacadeInvocationHandler#invoke(Object, java.lang.reflect.Method, Object[])}.
+     */
+    PROXY,
+
+    /**
+     * Facades are instances of classes generated by the {@link FacadeClassGenerator}, which
+     * implement each method directly. If a class cannot be generated, a {@link #PROXY} facade
+     * is created instead.
+     */
+    GENERATED
+}
@@ -0,0 +1,244 @@
+package org.randombits.facade;
+
+import org.apache.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Views of <code>java.util.concurrent.Flow</code> publishers and subscribers from another
+ * class loader. A publisher view passes each subscriber a view of it, and a subscriber view
+ * converts each element passed to <code>onNext</code> for the subscriber's class loader
+ * before passing it on. Subscriptions only carry demand and cancellation, so they are passed
+ * as they are, and <code>request(n)</code> reaches the original publisher unchanged.
+ * <p/>
+ * Elements are converted through a converter kept for each subscription, which remembers
+ * the last element class whose instances can all be passed as they are. A stream of shared
+ * elements, such as strings or final event classes from a common API, is passed straight
+ * through after the first element.
+ * <p/>
+ * The <code>Flow</code> interfaces were added in Java 9, so they are found when this class
+ * is loaded and the views are proxies.
+ */
+final class FacadeFlows {
+
+    private static final Logger LOG = Logger.getLogger( FacadeFlows.class );
+
+    private static final Class<?> PUBLISHER = findFlowClass( "Publisher" );
+
+    private static final Class<?> SUBSCRIBER = findFlowClass( "Subscriber" );
+
+    private static final Class<?> SUBSCRIPTION = findFlowClass( "Subscription" );
+
+    private static final MethodHandle SUBSCRIBE = findMethod( PUBLISHER, "subscribe", SUBSCRIBER );
+
+    private static final MethodHandle ON_SUBSCRIBE = findMethod( SUBSCRIBER, "onSubscribe", SUBSCRIPTION );
+
+    private static final MethodHandle ON_NEXT = findMethod( SUBSCRIBER, "onNext", Object.class );
+
+    private static final MethodHandle ON_ERROR = findMethod( SUBSCRIBER, "onError", Throwable.class );
+
+    private static final MethodHandle ON_COMPLETE = findMethod( SUBSCRIBER, "onComplete" );
+
+    private static final boolean AVAILABLE = SUBSCRIBE != null && ON_SUBSCRIBE != null && ON_NEXT != null
+            && ON_ERROR != null && ON_COMPLETE != null;
+
+    private FacadeFlows() {}
+
+    private static Class<?> findFlowClass( String name ) {
+        try {
+            return Class.forName( "java.util.concurrent.Flow$" + name, false, null );
+        } catch ( ClassNotFoundException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a handle of type <code>(Object, Object...)void</code> for the method.
+     */
+    private static MethodHandle findMethod( Class<?> type, String name, Class<?>... parameterTypes ) {
+        if ( type == null )
+            return null;
+        try {
+            MethodHandle handle = MethodHandles.publicLookup().findVirtual( type, name,
+                    MethodType.methodType( void.class, parameterTypes ) );
+            return handle.asType( MethodType.genericMethodType( parameterTypes.length + 1 )
+                    .changeReturnType( void.class ) );
+        } catch ( NoSuchMethodException e ) {
+            LOG.warn( "Unable to find Flow method " + name + ": " + e.getMessage(), e );
+        } catch ( IllegalAccessException e ) {
+            LOG.warn( "Unable to find Flow method " + name + ": " + e.getMessage(), e );
+        }
+        return null;
+    }
+
+    /**
+     * Returns <code>true</code> if a view can be created for the target type.
+     *
+     * @param targetType The target type.
+     * @return <code>true</code> if the target type is <code>Flow.Publisher</code> or
+     *         <code>Flow.Subscriber</code>.
+     */
+    public static boolean isViewType( Class<?> targetType ) {
+        return AVAILABLE && ( targetType == PUBLISHER || targetType == SUBSCRIBER );
+    }
+
+    /**
+     * Returns a view of the publisher or subscriber for the target class loader.
+     *
+     * @param source            The publisher or subscriber, which must be an instance of the
+     *                          target type.
+     * @param targetType        The target type, which must be a view type.
+     * @param targetClassLoader The target class loader.
+     * @param assistant         The assistant to convert elements with.
+     * @return The view.
+     * @see #isViewType(Class)
+     */
+    public static Object toView( Object source, Class<?> targetType, ClassLoader targetClassLoader,
+                                 FacadeAssistant assistant ) {
+        if ( Proxy.isProxyClass( source.getClass() ) ) {
+            // Don't wrap a view in another view, but view the original instead.
+            InvocationHandler handler = Proxy.getInvocationHandler( source );
+            if ( handler instanceof ViewHandler ) {
+                ViewHandler view = (ViewHandler) handler;
+                if ( view.targetClassLoader == targetClassLoader )
+                    return source;
+                source = view.source;
+            }
+        }
+
+        if ( targetType == PUBLISHER )
+            return newView( PUBLISHER, new PublisherHandler( source, targetClassLoader, assistant ) );
+
+        // Elements sent to the subscriber must be converted to its own class loader.
+        Converter converter = new Converter( source.getClass().getClassLoader(), assistant );
+        return newView( SUBSCRIBER, new SubscriberHandler( source, targetClassLoader, converter ) );
+    }
+
+    private static Object newView( Class<?> type, InvocationHandler handler ) {
+        return Proxy.newProxyInstance( FacadeFlows.class.getClassLoader(), new Class<?>[]{type}, handler );
+    }
+
+    /**
+     * Converts elements for a single subscriber.
+     */
+    private static class Converter {
+
+        private final ClassLoader targetClassLoader;
+
+        private final FacadeAssistant assistant;
+
+        /**
+         * The last element class whose instances can all be passed as they are. Signals to a
+         * subscriber happen one at a time, so it needs no synchronization.
+         */
+        private Class<?> sharedClass;
+
+        Converter( ClassLoader targetClassLoader, FacadeAssistant assistant ) {
+            this.targetClassLoader = targetClassLoader;
+            this.assistant = assistant;
+        }
+
+        Object toTarget( Object element ) {
+            if ( element == null || targetClassLoader == null )
+                return element;
+
+            Class<?> elementClass = element.getClass();
+            if ( elementClass == sharedClass )
+                return element;
+            if ( elementClass.getClassLoader() == targetClassLoader
+                    || assistant.isFinalShared( elementClass, targetClassLoader ) ) {
+                sharedClass = elementClass;
+                return element;
+            }
+            return assistant.prepareObject( element, Object.class, targetClassLoader );
+        }
+
+        Object toTarget( Throwable error ) {
+            if ( targetClassLoader == null )
+                return error;
+            Throwable translated = ExceptionTranslator.translate( error, targetClassLoader, assistant );
+            if ( translated != null )
+                return translated;
+            Object converted = assistant.prepareObject( error, Throwable.class, targetClassLoader );
+            return converted instanceof Throwable ? converted : error;
+        }
+    }
+
+    /**
+     * The base for view handlers, which answers the {@link Object} methods.
+     */
+    private abstract static class ViewHandler implements InvocationHandler {
+
+        final Object source;
+
+        final ClassLoader targetClassLoader;
+
+        ViewHandler( Object source, ClassLoader targetClassLoader ) {
+            this.source = source;
+            this.targetClassLoader = targetClassLoader;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+            if ( method.getDeclaringClass() == Object.class ) {
+                String name = method.getName();
+                if ( "equals".equals( name ) )
+                    return proxy == args[0];
+                if ( "hashCode".equals( name ) )
+                    return System.identityHashCode( proxy );
+                return "View of " + source;
+            }
+            invokeFlow( method.getName(), args );
+            return null;
+        }
+
+        abstract void invokeFlow( String name, Object[] args ) throws Throwable;
+    }
+
+    private static class PublisherHandler extends ViewHandler {
+
+        private final FacadeAssistant assistant;
+
+        PublisherHandler( Object source, ClassLoader targetClassLoader, FacadeAssistant assistant ) {
+            super( source, targetClassLoader );
+            this.assistant = assistant;
+        }
+
+        @Override
+        void invokeFlow( String name, Object[] args ) throws Throwable {
+            // subscribe( subscriber )
+            Object subscriber = args[0];
+            if ( subscriber != null ) {
+                Converter converter = new Converter( targetClassLoader, assistant );
+                subscriber = newView( SUBSCRIBER, new SubscriberHandler( subscriber, null, converter ) );
+            }
+            SUBSCRIBE.invokeExact( source, subscriber );
+        }
+    }
+
+    private static class SubscriberHandler extends ViewHandler {
+
+        private final Converter converter;
+
+        SubscriberHandler( Object source, ClassLoader targetClassLoader, Converter converter ) {
+            super( source, targetClassLoader );
+            this.converter = converter;
+        }
+
+        @Override
+        void invokeFlow( String name, Object[] args ) throws Throwable {
+            if ( "onNext".equals( name ) )
+                ON_NEXT.invokeExact( source, converter.toTarget( args[0] ) );
+            else if ( "onSubscribe".equals( name ) )
+                ON_SUBSCRIBE.invokeExact( source, args[0] );
+            else if ( "onError".equals( name ) )
+                ON_ERROR.invokeExact( source, converter.toTarget( (Throwable) args[0] ) );
+            else
+                ON_COMPLETE.invokeExact( source );
+        }
+    }
+}
@@ -26,15 +26,24 @@ package org.randombits.facade;
 import org.randombits.facade.FacadeAssistant.FacadeInfo;
 
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class FacadeInvocationHandler implements InvocationHandler {
-    Object wrapped;
 
-    private ClassLoader wrapperLoader;
+    /**
+     * The dispatch plans for each wrapped class, keyed by the facade method.
+     */
+    private static final ClassCache<ConcurrentMap<Method, DispatchPlan>> PLANS =
+            new ClassCache<ConcurrentMap<Method, DispatchPlan>>() {
+                @Override
+                protected ConcurrentMap<Method, DispatchPlan> computeValue( Class<?> type ) {
+                    return new ConcurrentHashMap<Method, DispatchPlan>();
+                }
+            };
 
-    private ClassLoader wrappedLoader;
+    Object wrapped;
 
     /**
      * Constructs a new handler.
@@ -49,9 +58,6 @@ public class FacadeInvocationHandler implements InvocationHandler {
     private void init( Object facaded ) {
         if ( wrapped == null ) {
             this.wrapped = facaded;
-
-            wrapperLoader = getClass().getClassLoader();
-            wrappedLoader = facaded.getClass().getClassLoader();
         }
     }
 
@@ -61,89 +67,57 @@ public class FacadeInvocationHandler implements InvocationHandler {
 
     public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
         try {
-            Method iMethod = findWrappedMethod( method );
-            MethodSignature signature = new MethodSignature( iMethod );
-            FacadeInfo info = FacadeAssistant.getInstance().findFacadeInfo( wrapped.getClass(), signature );
-            Class<?> arrayType = findArrayType( info, args );
-
-            args = toWrapped( args, method.getParameterTypes(), info );
-            Class<?> returnType = FacadeAssistant.getInstance().findClass( iMethod.getReturnType(), wrapperLoader );
-            Object returnValue = iMethod.invoke( wrapped, args );
-            return FacadeAssistant.getInstance().prepareObject( returnValue, returnType, wrapperLoader,
-                    info.isReturnFacadable(), arrayType );
+            return findPlan( method ).invoke( wrapped, args );
         } catch ( NoSuchMethodException e ) {
             throw new FacadeException( e );
         } catch ( ClassNotFoundException e ) {
             throw new FacadeException( e );
-        } catch ( IllegalAccessException e ) {
-            throw new FacadeException( e );
-        } catch ( InvocationTargetException e ) {
-            if ( e.getTargetException() instanceof Exception ) {
-                Exception targetException = ( Exception ) e.getTargetException();
-                Class<? extends Exception> wrapperClass = ( Class<? extends Exception> ) FacadeAssistant
-                        .getInstance().findClass( targetException.getClass(), wrapperLoader );
-                Exception preparedException = FacadeAssistant.getInstance().prepareObject( targetException,
-                        wrapperClass, wrapperLoader, false );
-                if ( preparedException != null )
-                    throw preparedException;
-            } else if ( e.getTargetException() != null ) {
-                throw e.getTargetException();
-            }
-            throw new FacadeException( e );
         }
     }
 
-    private Class<?> findArrayType( FacadeInfo info, Object[] args ) {
-        int arrayTypeParam = info.getArrayTypeParameter();
-        if ( arrayTypeParam >= 0 ) {
-            if ( args == null || arrayTypeParam >= args.length )
-                throw new FacadeException( "Illegal array type parameter index: " + arrayTypeParam );
-
-            Object arg = args[arrayTypeParam];
-
-            if ( arg == null )
-                return null;
-
-            else if ( arg instanceof Class )
-                return ( Class<?> ) arg;
-
-            else {
-                Class<?> argClass = arg.getClass();
-                return argClass.isArray() ? argClass.getComponentType() : argClass;
-            }
-        }
-        return null;
+    private DispatchPlan findPlan( Method method ) throws NoSuchMethodException, ClassNotFoundException {
+        return findPlan( wrapped.getClass(), method );
     }
 
-    private Object[] toWrapped( Object[] objs, Class<?>[] types, FacadeInfo info ) {
-        if ( objs == null )
-            return null;
-
-        Object wrappedObjs[] = new Object[objs.length];
-        for ( int i = 0; i < types.length; i++ ) {
-            if ( Class.class.isInstance( objs[i] ) ) {
-                wrappedObjs[i] = FacadeAssistant.getInstance().findClass( ( Class<?> ) objs[i], wrappedLoader );
-            } else {
-                Class<?> wrappedClass = FacadeAssistant.getInstance().findClass( types[i], wrappedLoader );
-                wrappedObjs[i] = FacadeAssistant.getInstance().prepareObject( objs[i], wrappedClass,
-                        wrappedLoader, info.isParameterFacadable( i ) );
-            }
+    /**
+     * Finds the dispatch plan for the specified facade method, creating it if this is the
+     * first time it has been invoked against the wrapped class.
+     *
+     * @param wrappedClass The class of the wrapped object.
+     * @param method       The facade method.
+     * @return The dispatch plan.
+     * @throws NoSuchMethodException  if the wrapped object has no equivalent method.
+     * @throws ClassNotFoundException if a parameter type is not available to the wrapped object.
+     */
+    static DispatchPlan findPlan( Class<?> wrappedClass, Method method )
+            throws NoSuchMethodException, ClassNotFoundException {
+        ConcurrentMap<Method, DispatchPlan> plans = PLANS.get( wrappedClass );
+        DispatchPlan plan = plans.get( method );
+        if ( plan == null ) {
+            Method iMethod = findWrappedMethod( wrappedClass, method );
+            FacadeInfo info = FacadeAssistant.getInstance().findFacadeInfo( wrappedClass,
+                    new MethodSignature( iMethod ) );
+            plan = new DispatchPlan( method, iMethod, info, wrappedClass.getClassLoader(),
+                    FacadeInvocationHandler.class.getClassLoader() );
+            DispatchPlan existing = plans.putIfAbsent( method, plan );
+            if ( existing != null )
+                plan = existing;
         }
-
-        return wrappedObjs;
+        return plan;
     }
 
-    private Method findWrappedMethod( Method method ) throws NoSuchMethodException, ClassNotFoundException {
+    private static Method findWrappedMethod( Class<?> wrappedClass, Method method )
+            throws NoSuchMethodException, ClassNotFoundException {
         Class<?>[] paramTypes = FacadeAssistant.getInstance().toFacadeClasses( method.getParameterTypes(),
-                wrappedLoader, true );
-        Method wrappedMethod = findHighestMethod( wrapped.getClass(), method.getName(), paramTypes );
+                wrappedClass.getClassLoader(), true );
+        Method wrappedMethod = findHighestMethod( wrappedClass, method.getName(), paramTypes );
         if ( wrappedMethod == null )
             throw new NoSuchMethodException( method.getName() );
         return wrappedMethod;
     }
 
     // recurse up hierarchy, looking for highest method
-    private Method findHighestMethod( Class<?> cls, String method, Class<?>... paramTypes )
+    private static Method findHighestMethod( Class<?> cls, String method, Class<?>... paramTypes )
             throws SecurityException {
         Class<?>[] interfaces = cls.getInterfaces();
         for ( int i = 0; i < interfaces.length; i++ ) {
@@ -0,0 +1,42 @@
+package org.randombits.facade;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * The superclass of all facade classes created by the {@link FacadeClassGenerator}. It
+ * plays the same role for generated facades as {@link java.lang.reflect.Proxy} does for
+ * proxy facades, giving access to the {@link FacadeInvocationHandler} which holds the
+ * wrapped object.
+ */
+public abstract class GeneratedFacade {
+
+    private final FacadeInvocationHandler handler;
+
+    protected GeneratedFacade( FacadeInvocationHandler handler ) {
+        this.handler = handler;
+    }
+
+    /**
+     * Returns <code>true</code> if the object is an instance of a generated facade class from
+     * this class loader.
+     *
+     * @param object The object to check.
+     * @return <code>true</code> if the object is a generated facade.
+     */
+    public static boolean isGeneratedFacade( Object object ) {
+        return object instanceof GeneratedFacade;
+    }
+
+    /**
+     * Returns the invocation handler for the specified generated facade.
+     *
+     * @param facade The facade.
+     * @return The handler.
+     * @throws IllegalArgumentException if the object is not a generated facade.
+     */
+    public static InvocationHandler getInvocationHandler( Object facade ) {
+        if ( !( facade instanceof GeneratedFacade ) )
+            throw new IllegalArgumentException( "Not a generated facade: " + facade );
+        return ( (GeneratedFacade) facade ).handler;
+    }
+}
@@ -0,0 +1,474 @@
+package org.randombits.facade;
+
+import org.apache.log4j.Logger;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A {@link SerializationEngine} which copies object graphs field by field, without writing
+ * them to a stream. The result is the same as serializing and deserializing a graph of plain
+ * data classes: constructors are skipped just as they are during deserialization, transient
+ * fields are left with their default values, and shared references and cycles are preserved.
+ * <p/>
+ * Graphs containing anything else are copied by a fallback engine, which by default is the
+ * {@link BufferedSerializationEngine}. This includes classes with their own serialization
+ * methods, such as <code>writeObject</code> or <code>readResolve</code>, as well as
+ * <code>Externalizable</code> classes and library classes other than strings, numbers and
+ * the common collections. Fields are matched by declaring class and name, as serialization
+ * matches them, and classes whose <code>serialVersionUID</code>s differ between the two class
+ * loaders are left to the fallback engine, which rejects them as deserialization would.
+ */
+public class GraphCopyEngine implements SerializationEngine {
+
+    private static final Logger LOG = Logger.getLogger( GraphCopyEngine.class );
+
+    private static final Object REFLECTION_FACTORY;
+
+    private static final Method NEW_CONSTRUCTOR_FOR_SERIALIZATION;
+
+    static {
+        Object factory = null;
+        Method newConstructor = null;
+        try {
+            Class<?> factoryClass = Class.forName( "sun.reflect.ReflectionFactory" );
+            factory = factoryClass.getMethod( "getReflectionFactory" ).invoke( null );
+            newConstructor = factoryClass.getMethod( "newConstructorForSerialization", Class.class, Constructor.class );
+        } catch ( ClassNotFoundException e ) {
+            LOG.debug( "Graph copies are not available: " + e.getMessage(), e );
+        } catch ( NoSuchMethodException e ) {
+            LOG.debug( "Graph copies are not available: " + e.getMessage(), e );
+        } catch ( IllegalAccessException e ) {
+            LOG.debug( "Graph copies are not available: " + e.getMessage(), e );
+        } catch ( InvocationTargetException e ) {
+            LOG.debug( "Graph copies are not available: " + e.getMessage(), e );
+        }
+        REFLECTION_FACTORY = newConstructor != null ? factory : null;
+        NEW_CONSTRUCTOR_FOR_SERIALIZATION = newConstructor;
+    }
+
+    /**
+     * Immutable library classes, which are passed through as they are.
+     */
+    private static final Set<Class<?>> IMMUTABLE_CLASSES = new HashSet<Class<?>>( Arrays.<Class<?>>asList(
+            String.class, Boolean.class, Byte.class, Character.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, BigInteger.class, BigDecimal.class ) );
+
+    private static final ClassCache<ClassPlan> PLANS = new ClassCache<ClassPlan>() {
+        @Override
+        protected ClassPlan computeValue( Class<?> type ) {
+            return new ClassPlan( type );
+        }
+    };
+
+    private final SerializationEngine fallback;
+
+    /**
+     * Constructs an engine which falls back to the {@link BufferedSerializationEngine}.
+     */
+    public GraphCopyEngine() {
+        this( new BufferedSerializationEngine() );
+    }
+
+    /**
+     * Constructs an engine with the specified fallback.
+     *
+     * @param fallback The engine for graphs which cannot be copied field by field.
+     */
+    public GraphCopyEngine( SerializationEngine fallback ) {
+        if ( fallback == null )
+            throw new IllegalArgumentException( "The fallback engine may not be null." );
+        this.fallback = fallback;
+    }
+
+    /**
+     * Returns <code>true</code> if this JVM allows objects to be created the way
+     * deserialization creates them. If not, every copy is made by the fallback engine.
+     *
+     * @return <code>true</code> if graph copies are available.
+     */
+    public static boolean isAvailable() {
+        return NEW_CONSTRUCTOR_FOR_SERIALIZATION != null;
+    }
+
+    public Object copy( Object sourceObject, ClassLoader targetClassLoader ) throws IOException, ClassNotFoundException {
+        if ( isAvailable() ) {
+            try {
+                return new GraphCopy( targetClassLoader ).copy( sourceObject );
+            } catch ( UnsupportedCopyException e ) {
+                if ( LOG.isDebugEnabled() )
+                    LOG.debug( "Copying " + sourceObject.getClass().getName() + " by serialization: " + e.getMessage() );
+            }
+        }
+        return fallback.copy( sourceObject, targetClassLoader );
+    }
+
+    /**
+     * Thrown when part of a graph cannot be copied field by field.
+     */
+    private static class UnsupportedCopyException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedCopyException( String message ) {
+            super( message, null, false, false );
+        }
+    }
+
+    /**
+     * A single copy of an object graph into a target class loader.
+     */
+    private static class GraphCopy {
+
+        private final ClassLoader targetClassLoader;
+
+        private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+
+        GraphCopy( ClassLoader targetClassLoader ) {
+            this.targetClassLoader = targetClassLoader;
+        }
+
+        Object copy( Object source ) throws IOException, ClassNotFoundException, UnsupportedCopyException {
+            if ( source == null )
+                return null;
+            Class<?> type = source.getClass();
+            if ( IMMUTABLE_CLASSES.contains( type ) )
+                return source;
+            if ( source instanceof Class )
+                return copyClass( (Class<?>) source );
+
+            Object target = copies.get( source );
+            if ( target != null )
+                return target;
+
+            if ( type.isArray() )
+                return copyArray( source );
+            if ( source instanceof Enum )
+                return copyEnum( (Enum<?>) source );
+            if ( !( source instanceof Serializable ) )
+                throw new NotSerializableException( type.getName() );
+            if ( type.getClassLoader() == null )
+                return copyLibraryObject( source );
+            return copyFields( source );
+        }
+
+        private Class<?> copyClass( Class<?> source ) throws ClassNotFoundException {
+            if ( source.isPrimitive() )
+                return source;
+            return resolve( source.getName() );
+        }
+
+        private Class<?> resolve( String name ) throws ClassNotFoundException {
+            Class<?> type = FacadeAssistant.getInstance().findClass( name, targetClassLoader );
+            if ( type == null )
+                throw new ClassNotFoundException( name );
+            return type;
+        }
+
+        private Object copyArray( Object source ) throws IOException, ClassNotFoundException, UnsupportedCopyException {
+            Class<?> componentType = source.getClass().getComponentType();
+            int length = Array.getLength( source );
+            if ( componentType.isPrimitive() ) {
+                Object target = Array.newInstance( componentType, length );
+                System.arraycopy( source, 0, target, 0, length );
+                copies.put( source, target );
+                return target;
+            }
+
+            Object[] target = (Object[]) Array.newInstance( resolve( source.getClass().getName() ).getComponentType(), length );
+            copies.put( source, target );
+            Object[] sourceArray = (Object[]) source;
+            for ( int i = 0; i < length; i++ ) {
+                try {
+                    target[i] = copy( sourceArray[i] );
+                } catch ( ArrayStoreException e ) {
+                    throw new UnsupportedCopyException( "Incompatible array element in " + source.getClass().getName() );
+                }
+            }
+            return target;
+        }
+
+        private Object copyEnum( Enum<?> source ) throws ClassNotFoundException, UnsupportedCopyException {
+            Class<?> targetType = resolve( source.getDeclaringClass().getName() );
+            if ( !targetType.isEnum() )
+                throw new UnsupportedCopyException( targetType.getName() + " is not an enum" );
+            try {
+                Object target = valueOf( targetType, source.name() );
+                copies.put( source, target );
+                return target;
+            } catch ( IllegalArgumentException e ) {
+                throw new UnsupportedCopyException( "No enum constant " + targetType.getName() + "." + source.name() );
+            }
+        }
+
+        @SuppressWarnings( {"unchecked"} )
+        private <E extends Enum<E>> E valueOf( Class<?> enumType, String name ) {
+            return Enum.valueOf( (Class<E>) enumType, name );
+        }
+
+        /**
+         * Copies the common collection classes, which are shared between all class loaders but
+         * may contain values which are not.
+         */
+        @SuppressWarnings( {"unchecked"} )
+        private Object copyLibraryObject( Object source ) throws IOException, ClassNotFoundException, UnsupportedCopyException {
+            Class<?> type = source.getClass();
+            if ( type == ArrayList.class || type == LinkedList.class || type == HashSet.class
+                    || type == LinkedHashSet.class || ( type == TreeSet.class && ( (TreeSet<?>) source ).comparator() == null ) ) {
+                Collection<Object> target = (Collection<Object>) newLibraryObject( type, ( (Collection<?>) source ).size() );
+                copies.put( source, target );
+                for ( Object element : (Collection<?>) source )
+                    target.add( copy( element ) );
+                return target;
+            }
+            if ( type == HashMap.class || ( type == TreeMap.class && ( (TreeMap<?, ?>) source ).comparator() == null ) ) {
+                Map<Object, Object> target = (Map<Object, Object>) newLibraryObject( type, ( (Map<?, ?>) source ).size() );
+                copies.put( source, target );
+                for ( Map.Entry<?, ?> entry : ( (Map<?, ?>) source ).entrySet() )
+                    target.put( copy( entry.getKey() ), copy( entry.getValue() ) );
+                return target;
+            }
+            throw new UnsupportedCopyException( type.getName() + " is not a plain data class" );
+        }
+
+        private Object newLibraryObject( Class<?> type, int size ) {
+            if ( type == ArrayList.class )
+                return new ArrayList<Object>( size );
+            if ( type == LinkedList.class )
+                return new LinkedList<Object>();
+            if ( type == HashSet.class )
+                return new HashSet<Object>( Math.max( 16, size * 4 / 3 + 1 ) );
+            if ( type == LinkedHashSet.class )
+                return new LinkedHashSet<Object>( Math.max( 16, size * 4 / 3 + 1 ) );
+            if ( type == TreeSet.class )
+                return new TreeSet<Object>();
+            if ( type == HashMap.class )
+                return new HashMap<Object, Object>( Math.max( 16, size * 4 / 3 + 1 ) );
+            return new TreeMap<Object, Object>();
+        }
+
+        private Object copyFields( Object source ) throws IOException, ClassNotFoundException, UnsupportedCopyException {
+            ClassPlan sourcePlan = PLANS.get( source.getClass() );
+            ClassPlan targetPlan = PLANS.get( resolve( source.getClass().getName() ) );
+            sourcePlan.checkPlain();
+            targetPlan.checkPlain();
+            if ( !Arrays.equals( sourcePlan.versions, targetPlan.versions ) )
+                throw new UnsupportedCopyException( "The serialVersionUID of " + source.getClass().getName()
+                        + " or one of its superclasses does not match" );
+
+            Object target = targetPlan.newInstance();
+            copies.put( source, target );
+
+            // Both field lists are sorted by key, so matching fields can be found in one pass.
+            FieldSlot[] sourceFields = sourcePlan.fields;
+            FieldSlot[] targetFields = targetPlan.fields;
+            int t = 0;
+            for ( FieldSlot sourceField : sourceFields ) {
+                while ( t < targetFields.length && targetFields[t].key.compareTo( sourceField.key ) < 0 )
+                    t++;
+                if ( t == targetFields.length )
+                    break;
+                if ( targetFields[t].key.equals( sourceField.key ) )
+                    targetFields[t].set( target, copy( sourceField.get( source ) ) );
+            }
+            return target;
+        }
+    }
+
+    /**
+     * The serializable fields of a class, and how to create instances of it.
+     */
+    private static class ClassPlan {
+
+        private final Class<?> type;
+
+        private final String unsupported;
+
+        private final FieldSlot[] fields;
+
+        /**
+         * The <code>serialVersionUID</code> of the class and each serializable superclass.
+         */
+        private final long[] versions;
+
+        private final Constructor<?> constructor;
+
+        ClassPlan( Class<?> type ) {
+            this.type = type;
+            String reason = findUnsupportedReason( type );
+            List<FieldSlot> slots = new ArrayList<FieldSlot>();
+            List<Long> uids = new ArrayList<Long>();
+            Constructor<?> cnst = null;
+            if ( reason == null ) {
+                try {
+                    for ( Class<?> c = type; c != null && Serializable.class.isAssignableFrom( c ); c = c.getSuperclass() ) {
+                        uids.add( ObjectStreamClass.lookup( c ).getSerialVersionUID() );
+                        for ( Field field : c.getDeclaredFields() ) {
+                            int modifiers = field.getModifiers();
+                            if ( !Modifier.isStatic( modifiers ) && !Modifier.isTransient( modifiers ) ) {
+                                field.setAccessible( true );
+                                slots.add( new FieldSlot( field ) );
+                            }
+                        }
+                    }
+                    cnst = newConstructorForSerialization( type );
+                    if ( cnst == null )
+                        reason = "No constructor for deserialization";
+                } catch ( RuntimeException e ) {
+                    // Includes the exception thrown when the class's package is not open to us.
+                    reason = "Fields are not accessible: " + e.getMessage();
+                }
+            }
+            Collections.sort( slots, FIELD_ORDER );
+            this.unsupported = reason;
+            this.fields = slots.toArray( new FieldSlot[slots.size()] );
+            this.versions = new long[uids.size()];
+            for ( int i = 0; i < versions.length; i++ )
+                versions[i] = uids.get( i );
+            this.constructor = cnst;
+        }
+
+        void checkPlain() throws UnsupportedCopyException {
+            if ( unsupported != null )
+                throw new UnsupportedCopyException( type.getName() + ": " + unsupported );
+        }
+
+        Object newInstance() throws UnsupportedCopyException {
+            try {
+                return constructor.newInstance();
+            } catch ( InstantiationException e ) {
+                throw new UnsupportedCopyException( "Unable to create " + type.getName() + ": " + e.getMessage() );
+            } catch ( IllegalAccessException e ) {
+                throw new UnsupportedCopyException( "Unable to create " + type.getName() + ": " + e.getMessage() );
+            } catch ( InvocationTargetException e ) {
+                throw new UnsupportedCopyException( "Unable to create " + type.getName() + ": "
+                        + e.getTargetException().getMessage() );
+            }
+        }
+
+        private static String findUnsupportedReason( Class<?> type ) {
+            if ( Externalizable.class.isAssignableFrom( type ) )
+                return "Externalizable";
+            if ( Proxy.isProxyClass( type ) )
+                return "Proxy class";
+            if ( type.getSuperclass() != null && "java.lang.Record".equals( type.getSuperclass().getName() ) )
+                return "Record";
+            for ( Class<?> c = type; c != null && Serializable.class.isAssignableFrom( c ); c = c.getSuperclass() ) {
+                if ( c.getClassLoader() == null )
+                    return "Library superclass " + c.getName();
+                if ( hasMethod( c, "writeObject", ObjectOutputStream.class )
+                        || hasMethod( c, "readObject", ObjectInputStream.class )
+                        || hasMethod( c, "readObjectNoData" ) )
+                    return "Custom serialization in " + c.getName();
+                if ( hasMethod( c, "writeReplace" ) || hasMethod( c, "readResolve" ) )
+                    return "Replaced during serialization by " + c.getName();
+                try {
+                    c.getDeclaredField( "serialPersistentFields" );
+                    return "Declares serialPersistentFields";
+                } catch ( NoSuchFieldException e ) {
+                    // Good - nothing special.
+                }
+            }
+            return null;
+        }
+
+        private static boolean hasMethod( Class<?> type, String name, Class<?>... parameterTypes ) {
+            try {
+                type.getDeclaredMethod( name, parameterTypes );
+                return true;
+            } catch ( NoSuchMethodException e ) {
+                return false;
+            }
+        }
+
+        private static Constructor<?> newConstructorForSerialization( Class<?> type ) {
+            // Like deserialization, run the no-args constructor of the first class which is
+            // not serializable.
+            Class<?> initType = type;
+            while ( Serializable.class.isAssignableFrom( initType ) ) {
+                initType = initType.getSuperclass();
+                if ( initType == null )
+                    return null;
+            }
+            try {
+                Constructor<?> initConstructor = initType.getDeclaredConstructor();
+                return (Constructor<?>) NEW_CONSTRUCTOR_FOR_SERIALIZATION.invoke( REFLECTION_FACTORY, type, initConstructor );
+            } catch ( NoSuchMethodException e ) {
+                return null;
+            } catch ( IllegalAccessException e ) {
+                LOG.debug( "Unable to create a constructor for " + type.getName() + ": " + e.getMessage(), e );
+            } catch ( InvocationTargetException e ) {
+                LOG.debug( "Unable to create a constructor for " + type.getName() + ": " + e.getTargetException().getMessage(), e );
+            }
+            return null;
+        }
+    }
+
+    private static final Comparator<FieldSlot> FIELD_ORDER = new Comparator<FieldSlot>() {
+        public int compare( FieldSlot slot1, FieldSlot slot2 ) {
+            return slot1.key.compareTo( slot2.key );
+        }
+    };
+
+    /**
+     * A serializable field, identified by its declaring class and name.
+     */
+    private static class FieldSlot {
+
+        private final String key;
+
+        private final Field field;
+
+        FieldSlot( Field field ) {
+            this.key = field.getDeclaringClass().getName() + "." + field.getName();
+            this.field = field;
+        }
+
+        Object get( Object object ) throws UnsupportedCopyException {
+            try {
+                return field.get( object );
+            } catch ( IllegalAccessException e ) {
+                throw new UnsupportedCopyException( "Unable to read " + key + ": " + e.getMessage() );
+            }
+        }
+
+        void set( Object object, Object value ) throws UnsupportedCopyException {
+            try {
+                field.set( object, value );
+            } catch ( IllegalAccessException e ) {
+                throw new UnsupportedCopyException( "Unable to write " + key + ": " + e.getMessage() );
+            } catch ( IllegalArgumentException e ) {
+                throw new UnsupportedCopyException( "Incompatible value for " + key );
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.randombits.facade;
+
+/**
+ * The mechanisms available for invoking methods on the object wrapped by a facade.
+ *
+ * @see FacadeAssistant#setInvocationEngine(InvocationEngine)
+ */
+public enum InvocationEngine {
+    /**
+     * Invokes the wrapped method with {@link java.lang.reflect.Method#invoke(Object, Object...)}.
+     */
+    REFLECTION,
+
+    /**
+     * Invokes the wrapped method through a {@link java.lang.invoke.MethodHandle} with the
+     * argument and return value conversions bound in once per method. Methods which cannot be
+     * looked up as method handles fall back to {@link #REFLECTION}.
+     */
+    METHOD_HANDLES
+}
@@ -0,0 +1,83 @@
+package org.randombits.facade;
+
+import org.apache.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * Creates {@link FacadeInvocationHandler}s from a particular copy of this library, through a
+ * constructor handle which is looked up once.
+ */
+class InvocationHandlerFactory {
+
+    private static final Logger LOG = Logger.getLogger( InvocationHandlerFactory.class );
+
+    /**
+     * Marks a copy of {@link FacadeInvocationHandler} which is incompatible with this one.
+     */
+    private static final InvocationHandlerFactory INCOMPATIBLE = new InvocationHandlerFactory( null );
+
+    /**
+     * The factory for each copy of {@link FacadeInvocationHandler}, or {@link #INCOMPATIBLE}.
+     * A {@link ClassCache}, since the handler class usually comes from another copy of the
+     * library, which must not be left holding on to this one.
+     */
+    private static final ClassCache<InvocationHandlerFactory> FACTORIES = new ClassCache<InvocationHandlerFactory>() {
+        @Override
+        protected InvocationHandlerFactory computeValue( Class<?> handlerClass ) {
+            try {
+                MethodHandle constructor = MethodHandles.publicLookup()
+                        .findConstructor( handlerClass, MethodType.methodType( void.class, Object.class ) )
+                        .asType( MethodType.methodType( InvocationHandler.class, Object.class ) );
+                return new InvocationHandlerFactory( constructor );
+            } catch ( NoSuchMethodException e ) {
+                LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
+            } catch ( IllegalAccessException e ) {
+                LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
+            } catch ( WrongMethodTypeException e ) {
+                LOG.warn( "Incompatible version of Facade: " + e.getMessage(), e );
+            }
+            return INCOMPATIBLE;
+        }
+    };
+
+    private final MethodHandle constructor;
+
+    private InvocationHandlerFactory( MethodHandle constructor ) {
+        this.constructor = constructor;
+    }
+
+    /**
+     * Returns the factory for the specified copy of {@link FacadeInvocationHandler}.
+     *
+     * @param handlerClass The handler class.
+     * @return The factory, or <code>null</code> if the handler class is not compatible.
+     */
+    public static InvocationHandlerFactory getInstance( Class<?> handlerClass ) {
+        InvocationHandlerFactory factory = FACTORIES.get( handlerClass );
+        return factory != INCOMPATIBLE ? factory : null;
+    }
+
+    /**
+     * Creates a new invocation handler for the object.
+     *
+     * @param facaded The object to wrap.
+     * @return The handler, or <code>null</code> if it could not be created.
+     */
+    public InvocationHandler create( Object facaded ) {
+        try {
+            return (InvocationHandler) constructor.invokeExact( facaded );
+        } catch ( RuntimeException e ) {
+            LOG.warn( "Error while creating Facade: " + e.getMessage(), e );
+        } catch ( Error e ) {
+            throw e;
+        } catch ( Throwable t ) {
+            LOG.warn( "Error while creating Facade: " + t.getMessage(), t );
+        }
+        return null;
+    }
+}
@@ -0,0 +1,41 @@
+package org.randombits.facade;
+
+/**
+ * A {@link FacadeCache} which is told the class loader each facade was created for. The
+ * {@link FacadeAssistant} uses these methods in preference to the ones inherited from
+ * {@link FacadeCache}, which can only go by the target type's class loader. That is wrong
+ * for types such as {@link Object} which come from a shared loader.
+ */
+public interface LoaderAwareFacadeCache extends FacadeCache {
+
+    /**
+     * Returns the facade of the source object for the specified target class loader.
+     *
+     * @param sourceObject      The original source object.
+     * @param type              The type to retrieve it as.
+     * @param targetClassLoader The class loader the facade was created for.
+     * @param <T>               The facade type.
+     * @return The facade, or <code>null</code>.
+     */
+    <T> T get( Object sourceObject, Class<T> type, ClassLoader targetClassLoader );
+
+    /**
+     * Sets the facade of the source object for the specified target class loader.
+     *
+     * @param sourceObject      The source object.
+     * @param facade            The facade.
+     * @param targetType        The target type.
+     * @param targetClassLoader The class loader the facade was created for.
+     * @param <T>               The target type.
+     */
+    <T> void set( Object sourceObject, T facade, Class<T> targetType, ClassLoader targetClassLoader );
+
+    /**
+     * Removes any cached facade of the source object for the specified target class loader.
+     *
+     * @param sourceObject      The source object.
+     * @param targetType        The target type.
+     * @param targetClassLoader The class loader the facade was created for.
+     */
+    void remove( Object sourceObject, Class<?> targetType, ClassLoader targetClassLoader );
+}
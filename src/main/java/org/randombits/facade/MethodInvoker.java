@@ -0,0 +1,89 @@
+package org.randombits.facade;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Invokes the target method of a {@link DispatchPlan}, converting the arguments and return
+ * value on the way through.
+ */
+abstract class MethodInvoker {
+
+    private final InvocationEngine engine;
+
+    MethodInvoker( InvocationEngine engine ) {
+        this.engine = engine;
+    }
+
+    /**
+     * Returns the engine this invoker was created for.
+     *
+     * @return The engine.
+     */
+    public InvocationEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Invokes the target method.
+     *
+     * @param target The wrapped object.
+     * @param args   The arguments passed to the facade.
+     * @return The return value, prepared for the facade's class loader.
+     * @throws Throwable the exception thrown by the target method, translated for the facade's
+     *                   class loader.
+     */
+    public abstract Object invoke( Object target, Object[] args ) throws Throwable;
+
+    /**
+     * Invokes the target method via reflection.
+     */
+    static class ReflectionInvoker extends MethodInvoker {
+
+        private final DispatchPlan plan;
+
+        ReflectionInvoker( InvocationEngine engine, DispatchPlan plan ) {
+            super( engine );
+            this.plan = plan;
+        }
+
+        @Override
+        public Object invoke( Object target, Object[] args ) throws Throwable {
+            Class<?> arrayType = plan.findArrayType( args );
+            Object returnValue;
+            try {
+                returnValue = plan.getTargetMethod().invoke( target, plan.toWrapped( args ) );
+            } catch ( IllegalAccessException e ) {
+                throw new FacadeException( e );
+            } catch ( InvocationTargetException e ) {
+                throw plan.translateException( e.getTargetException() );
+            }
+            return plan.toWrapper( returnValue, arrayType );
+        }
+    }
+
+    /**
+     * Invokes the target method via a method handle which already includes the argument,
+     * return value and exception conversions.
+     */
+    static class MethodHandleInvoker extends MethodInvoker {
+
+        private final MethodHandle handle;
+
+        /**
+         * Constructs a new invoker.
+         *
+         * @param engine The engine.
+         * @param handle The handle, of type <code>(Object, Object[])Object</code>.
+         */
+        MethodHandleInvoker( InvocationEngine engine, MethodHandle handle ) {
+            super( engine );
+            this.handle = handle;
+        }
+
+        @Override
+        public Object invoke( Object target, Object[] args ) throws Throwable {
+            return (Object) handle.invokeExact( target, args );
+        }
+    }
+}
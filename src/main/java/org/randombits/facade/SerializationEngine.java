@@ -0,0 +1,25 @@
+package org.randombits.facade;
+
+import java.io.IOException;
+
+/**
+ * Copies objects into another class loader by serializing and deserializing them. The
+ * {@link FacadeAssistant} uses it for {@link java.io.Serializable} values which are neither
+ * shared nor facadable.
+ *
+ * @see FacadeAssistant#setSerializationEngine(SerializationEngine)
+ */
+public interface SerializationEngine {
+
+    /**
+     * Copies the object, resolving its classes in the target class loader.
+     *
+     * @param sourceObject      The object to copy.
+     * @param targetClassLoader The target class loader.
+     * @return The copy.
+     * @throws IOException            if the object could not be serialized or deserialized.
+     * @throws ClassNotFoundException if a class of the copy could not be found in the target
+     *                                class loader.
+     */
+    Object copy( Object sourceObject, ClassLoader targetClassLoader ) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,22 @@
+package org.randombits.facade;
+
+/**
+ * Converts values of a particular class into the equivalent class from another class loader.
+ * A hand-written transcoder is usually much cheaper than copying the value through
+ * serialization.
+ *
+ * @see FacadeAssistant#registerTranscoder(String, Transcoder)
+ */
+public interface Transcoder {
+
+    /**
+     * Converts the source object into an instance of the target class.
+     *
+     * @param sourceObject The object to convert.
+     * @param targetClass  The class with the registered name in the target class loader.
+     * @param assistant    The assistant, for converting any nested values.
+     * @return The converted object, or <code>null</code> to leave the conversion to the
+     *         assistant.
+     */
+    Object transcode( Object sourceObject, Class<?> targetClass, FacadeAssistant assistant );
+}
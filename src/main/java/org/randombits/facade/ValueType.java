@@ -0,0 +1,215 @@
+package org.randombits.facade;
+
+import org.apache.log4j.Logger;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable value class which can be rebuilt from its components: a record, or a class
+ * with a constructor annotated with <code>java.beans.ConstructorProperties</code> and a
+ * getter for each property. The component accessors and the constructor are looked up once
+ * for each class, and kept with it.
+ * <p/>
+ * A constructor's properties must match the class's instance fields one to one, by name and
+ * type, so that nothing is lost by rebuilding it. Classes with any other state are left to
+ * be serialized.
+ */
+class ValueType {
+
+    private static final Logger LOG = Logger.getLogger( ValueType.class );
+
+    private static final String RECORD_CLASS = "java.lang.Record";
+
+    private static final String CONSTRUCTOR_PROPERTIES = "java.beans.ConstructorProperties";
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final ValueType NONE = new ValueType( null, null, null, null );
+
+    private static final ClassCache<ValueType> TYPES = new ClassCache<ValueType>() {
+        @Override
+        protected ValueType computeValue( Class<?> type ) {
+            try {
+                if ( type.getSuperclass() != null && RECORD_CLASS.equals( type.getSuperclass().getName() ) )
+                    return forRecord( type );
+                return forConstructorProperties( type );
+            } catch ( NoSuchMethodException e ) {
+                LOG.debug( "Unable to rebuild " + type.getName() + ": " + e.getMessage(), e );
+            } catch ( IllegalAccessException e ) {
+                LOG.debug( "Unable to rebuild " + type.getName() + ": " + e.getMessage(), e );
+            } catch ( InvocationTargetException e ) {
+                LOG.debug( "Unable to rebuild " + type.getName() + ": " + e.getTargetException().getMessage(), e );
+            } catch ( RuntimeException e ) {
+                // Includes the exception thrown when the class's package is not open to us.
+                LOG.debug( "Unable to rebuild " + type.getName() + ": " + e.getMessage(), e );
+            }
+            return NONE;
+        }
+    };
+
+    private final String[] names;
+
+    private final Class<?>[] parameterTypes;
+
+    private final MethodHandle[] accessors;
+
+    private final MethodHandle constructor;
+
+    private ValueType( String[] names, Class<?>[] parameterTypes, MethodHandle[] accessors, MethodHandle constructor ) {
+        this.names = names;
+        this.parameterTypes = parameterTypes;
+        this.accessors = accessors;
+        this.constructor = constructor;
+    }
+
+    /**
+     * Returns the value type for the class.
+     *
+     * @param type The class.
+     * @return The value type, or <code>null</code> if the class can't be rebuilt from its
+     *         components.
+     */
+    public static ValueType forClass( Class<?> type ) {
+        ValueType valueType = TYPES.get( type );
+        return valueType != NONE ? valueType : null;
+    }
+
+    /**
+     * Rebuilds the value as an instance of the target value type, converting each component
+     * with {@link FacadeAssistant#prepareObject(Object, Class, ClassLoader)}.
+     *
+     * @param value             The value to rebuild.
+     * @param target            The equivalent value type in the target class loader.
+     * @param targetClassLoader The target class loader.
+     * @param assistant         The assistant.
+     * @return The rebuilt value, or <code>null</code> if the two value types don't have the
+     *         same components.
+     */
+    public Object rebuild( Object value, ValueType target, ClassLoader targetClassLoader, FacadeAssistant assistant ) {
+        if ( !Arrays.equals( names, target.names ) )
+            return null;
+
+        Object[] components = new Object[accessors.length];
+        try {
+            for ( int i = 0; i < accessors.length; i++ ) {
+                Object component = (Object) accessors[i].invokeExact( value );
+                components[i] = assistant.prepareObject( component, box( target.parameterTypes[i] ), targetClassLoader );
+            }
+            return (Object) target.constructor.invokeExact( components );
+        } catch ( RuntimeException e ) {
+            throw e;
+        } catch ( Error e ) {
+            throw e;
+        } catch ( Throwable t ) {
+            throw new FacadeException( t );
+        }
+    }
+
+    private static ValueType forRecord( Class<?> type ) throws NoSuchMethodException, IllegalAccessException,
+            InvocationTargetException {
+        Object[] components = (Object[]) Class.class.getMethod( "getRecordComponents" ).invoke( type );
+        String[] names = new String[components.length];
+        Class<?>[] parameterTypes = new Class<?>[components.length];
+        MethodHandle[] accessors = new MethodHandle[components.length];
+        for ( int i = 0; i < components.length; i++ ) {
+            Class<?> componentClass = components[i].getClass();
+            names[i] = (String) componentClass.getMethod( "getName" ).invoke( components[i] );
+            parameterTypes[i] = (Class<?>) componentClass.getMethod( "getType" ).invoke( components[i] );
+            accessors[i] = toAccessor( (Method) componentClass.getMethod( "getAccessor" ).invoke( components[i] ) );
+        }
+        Constructor<?> constructor = type.getDeclaredConstructor( parameterTypes );
+        return new ValueType( names, parameterTypes, accessors, toConstructor( constructor ) );
+    }
+
+    private static ValueType forConstructorProperties( Class<?> type ) throws NoSuchMethodException,
+            IllegalAccessException, InvocationTargetException {
+        for ( Constructor<?> constructor : type.getDeclaredConstructors() ) {
+            for ( Annotation annotation : constructor.getDeclaredAnnotations() ) {
+                if ( CONSTRUCTOR_PROPERTIES.equals( annotation.annotationType().getName() ) ) {
+                    String[] names = (String[]) annotation.annotationType().getMethod( "value" ).invoke( annotation );
+                    Class<?>[] parameterTypes = constructor.getParameterTypes();
+                    if ( names.length != parameterTypes.length || !coversFields( type, names, parameterTypes ) )
+                        return NONE;
+
+                    MethodHandle[] accessors = new MethodHandle[names.length];
+                    for ( int i = 0; i < names.length; i++ )
+                        accessors[i] = toAccessor( findGetter( type, names[i] ) );
+                    return new ValueType( names, parameterTypes, accessors, toConstructor( constructor ) );
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns <code>true</code> if the properties are exactly the instance fields of the
+     * class and its superclasses, excluding transient fields.
+     */
+    private static boolean coversFields( Class<?> type, String[] names, Class<?>[] parameterTypes ) {
+        Map<String, Class<?>> properties = new HashMap<String, Class<?>>();
+        for ( int i = 0; i < names.length; i++ )
+            properties.put( names[i], parameterTypes[i] );
+
+        int fields = 0;
+        for ( Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass() ) {
+            for ( Field field : c.getDeclaredFields() ) {
+                int modifiers = field.getModifiers();
+                if ( Modifier.isStatic( modifiers ) || Modifier.isTransient( modifiers ) )
+                    continue;
+                if ( properties.get( field.getName() ) != field.getType() ) {
+                    LOG.debug( "Not rebuilding " + type.getName() + ": the field " + field.getName()
+                            + " is not a constructor property" );
+                    return false;
+                }
+                fields++;
+            }
+        }
+        return fields == properties.size();
+    }
+
+    private static Method findGetter( Class<?> type, String name ) throws NoSuchMethodException {
+        String suffix = Character.toUpperCase( name.charAt( 0 ) ) + name.substring( 1 );
+        try {
+            return type.getMethod( "get" + suffix );
+        } catch ( NoSuchMethodException e ) {
+            Method getter = type.getMethod( "is" + suffix );
+            if ( getter.getReturnType() != boolean.class )
+                throw e;
+            return getter;
+        }
+    }
+
+    /**
+     * Returns a handle of type <code>(Object)Object</code> for the accessor.
+     */
+    private static MethodHandle toAccessor( Method method ) throws IllegalAccessException {
+        method.setAccessible( true );
+        return LOOKUP.unreflect( method ).asType( MethodType.methodType( Object.class, Object.class ) );
+    }
+
+    /**
+     * Returns a handle of type <code>(Object[])Object</code> for the constructor.
+     */
+    private static MethodHandle toConstructor( Constructor<?> constructor ) throws IllegalAccessException {
+        constructor.setAccessible( true );
+        int count = constructor.getParameterTypes().length;
+        return LOOKUP.unreflectConstructor( constructor )
+                .asType( MethodType.genericMethodType( count ) )
+                .asSpreader( Object[].class, count );
+    }
+
+    private static Class<?> box( Class<?> type ) {
+        return type.isPrimitive() ? MethodType.methodType( type ).wrap().returnType() : type;
+    }
+}
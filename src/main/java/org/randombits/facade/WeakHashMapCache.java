@@ -3,7 +3,9 @@ package org.randombits.facade;
 import java.util.Map;
 
 /**
- * An implementation of {@link FacadeCache} based on {@link java.util.WeakHashMap}.
+ * An implementation of {@link FacadeCache} based on {@link java.util.WeakHashMap}. It is not
+ * thread-safe; use the {@link ConcurrentFacadeCache} where facades are created by more than
+ * one thread.
  */
 public class WeakHashMapCache implements FacadeCache {
 
@@ -0,0 +1,163 @@
+package org.randombits.facade;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map which compares its keys by identity and holds them weakly. Entries whose
+ * keys have been collected are removed the next time the map is updated. Lookups take no
+ * locks.
+ * <p/>
+ * Values are held strongly, so a value must not refer back to its own key, or the entry will
+ * never be collected.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+class WeakIdentityMap<K, V> {
+
+    private final ConcurrentMap<Object, V> map = new ConcurrentHashMap<Object, V>();
+
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+    /**
+     * Returns the value for the key, or <code>null</code> if there is none.
+     *
+     * @param key The key.
+     * @return The value.
+     */
+    public V get( K key ) {
+        return map.get( new LookupKey( key ) );
+    }
+
+    /**
+     * Stores the value for the key, unless one is already present.
+     *
+     * @param key   The key.
+     * @param value The value.
+     * @return The existing value, or <code>null</code> if the new value was stored.
+     */
+    public V putIfAbsent( K key, V value ) {
+        expunge();
+        return map.putIfAbsent( new WeakKey<K>( key, queue ), value );
+    }
+
+    /**
+     * Stores the value for the key, replacing any existing value.
+     *
+     * @param key   The key.
+     * @param value The value.
+     * @return The previous value, or <code>null</code>.
+     */
+    public V put( K key, V value ) {
+        expunge();
+        return map.put( new WeakKey<K>( key, queue ), value );
+    }
+
+    /**
+     * Removes the value for the key.
+     *
+     * @param key The key.
+     * @return The removed value, or <code>null</code>.
+     */
+    public V remove( K key ) {
+        expunge();
+        return map.remove( new LookupKey( key ) );
+    }
+
+    /**
+     * Returns the number of entries, including any whose keys have been collected but not yet
+     * removed.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        map.clear();
+        expunge();
+    }
+
+    /**
+     * Removes the entries whose keys have been collected.
+     *
+     * @return <code>true</code> if any entries were removed.
+     */
+    public boolean expunge() {
+        boolean expunged = false;
+        Reference<? extends K> ref;
+        while ( ( ref = queue.poll() ) != null ) {
+            map.remove( ref );
+            expunged = true;
+        }
+        return expunged;
+    }
+
+    private static int hash( Object key ) {
+        return System.identityHashCode( key );
+    }
+
+    /**
+     * The key stored in the map.
+     */
+    private static class WeakKey<K> extends WeakReference<K> {
+
+        private final int hash;
+
+        WeakKey( K key, ReferenceQueue<K> queue ) {
+            super( key, queue );
+            hash = hash( key );
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj )
+                return true;
+            Object key = get();
+            if ( key == null )
+                return false;
+            if ( obj instanceof WeakKey )
+                return key == ( (WeakKey<?>) obj ).get();
+            return obj instanceof LookupKey && key == ( (LookupKey) obj ).key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A short-lived key used for lookups, which avoids creating a reference.
+     */
+    private static class LookupKey {
+
+        private final Object key;
+
+        LookupKey( Object key ) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( this == obj )
+                return true;
+            if ( obj instanceof WeakKey )
+                return key == ( (WeakKey<?>) obj ).get();
+            return obj instanceof LookupKey && key == ( (LookupKey) obj ).key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash( key );
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.randombits.facade;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link BoundedFacadeCache} class.
+ */
+public class BoundedFacadeCacheTest {
+
+    private ClassLoader classLoaderB;
+
+    @Before
+    public void setUp() {
+        classLoaderB = new IsolatedClassLoader().isolate( BoundedFacadeCacheTest.class.getPackage() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaximumSize() {
+        new BoundedFacadeCache( 0 );
+    }
+
+    @Test
+    public void testMaximumSize() {
+        BoundedFacadeCache cache = new BoundedFacadeCache( 100 );
+        List<Object> sources = new ArrayList<Object>();
+        List<Object> facades = new ArrayList<Object>();
+        for ( int i = 0; i < 1000; i++ ) {
+            Object source = new Object();
+            sources.add( source );
+            facades.add( "facade" + i );
+            cache.set( source, facades.get( i ), Object.class, classLoaderB );
+        }
+        assertEquals( 100, cache.size( classLoaderB ) );
+        assertEquals( 0, cache.size( getClass().getClassLoader() ) );
+        // The most recent facade is still there.
+        assertEquals( "facade999", cache.get( sources.get( 999 ), Object.class, classLoaderB ) );
+    }
+
+    @Test
+    public void testFrequentlyUsedFacadesSurvive() {
+        BoundedFacadeCache cache = new BoundedFacadeCache( 10 );
+        Object hot = new Object();
+        cache.set( hot, "hot", Object.class, classLoaderB );
+        assertEquals( "hot", cache.get( hot, Object.class, classLoaderB ) );
+
+        // A scan of one-off facades should not evict the facade in use.
+        List<Object> sources = new ArrayList<Object>();
+        List<Object> facades = new ArrayList<Object>();
+        for ( int i = 0; i < 100; i++ ) {
+            Object source = new Object();
+            sources.add( source );
+            facades.add( "facade" + i );
+            cache.set( source, facades.get( i ), Object.class, classLoaderB );
+        }
+        assertEquals( "hot", cache.get( hot, Object.class, classLoaderB ) );
+        assertNull( cache.get( sources.get( 0 ), Object.class, classLoaderB ) );
+        assertEquals( 10, cache.size( classLoaderB ) );
+    }
+
+    @Test
+    public void testReclaimedFacadesRemoved() throws InterruptedException {
+        BoundedFacadeCache cache = new BoundedFacadeCache( 10 );
+        Object source = new Object();
+        Object kept = new Object();
+        cache.set( source, new Object(), Object.class, classLoaderB );
+        cache.set( kept, kept, Object.class, classLoaderB );
+        assertEquals( 2, cache.size( classLoaderB ) );
+
+        // Nothing else refers to the first facade, so the cache must not keep it.
+        for ( int i = 0; i < 50 && cache.size( classLoaderB ) > 1; i++ ) {
+            System.gc();
+            Thread.sleep( 10 );
+        }
+        assertEquals( 1, cache.size( classLoaderB ) );
+        assertNull( cache.get( source, Object.class, classLoaderB ) );
+        assertSame( kept, cache.get( kept, Object.class, classLoaderB ) );
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        BoundedFacadeCache cache = new BoundedFacadeCache();
+        Object source = new Object();
+        cache.set( source, "facade", Object.class, classLoaderB );
+        cache.set( source, "facade", Object.class, null );
+        cache.remove( source, Object.class, classLoaderB );
+        assertNull( cache.get( source, Object.class, classLoaderB ) );
+        assertEquals( "facade", cache.get( source, Object.class ) );
+
+        cache.clear();
+        assertNull( cache.get( source, Object.class ) );
+    }
+}
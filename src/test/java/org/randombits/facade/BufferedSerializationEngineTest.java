@@ -0,0 +1,60 @@
+package org.randombits.facade;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link BufferedSerializationEngine} class.
+ */
+public class BufferedSerializationEngineTest {
+
+    private BufferedSerializationEngine engine;
+
+    private ClassLoader classLoaderB;
+
+    @Before
+    public void setUp() {
+        engine = new BufferedSerializationEngine();
+        classLoaderB = new IsolatedClassLoader().isolate( BufferedSerializationEngineTest.class.getPackage() );
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        SerializableValue value = new SerializableValue( "A", new SerializableValue( 1, null ) );
+
+        for ( int i = 0; i < 3; i++ ) {
+            Object copy = engine.copy( value, classLoaderB );
+            assertSame( classLoaderB, copy.getClass().getClassLoader() );
+            assertEquals( SerializableValue.class.getName(), copy.getClass().getName() );
+            assertEquals( "A", getValue( copy ) );
+            assertEquals( 1, getValue( getNext( copy ) ) );
+        }
+    }
+
+    @Test
+    public void testLargeCopy() throws Exception {
+        byte[] large = new byte[256 * 1024];
+        large[large.length - 1] = 42;
+
+        Object copy = engine.copy( new SerializableValue( large, null ), classLoaderB );
+        assertArrayEquals( large, (byte[]) getValue( copy ) );
+
+        // Smaller copies still work after the buffer has been dropped.
+        copy = engine.copy( new SerializableValue( "small", null ), classLoaderB );
+        assertEquals( "small", getValue( copy ) );
+    }
+
+    private Object getValue( Object value ) throws Exception {
+        Method getValue = value.getClass().getMethod( "getValue" );
+        return getValue.invoke( value );
+    }
+
+    private Object getNext( Object value ) throws Exception {
+        Method getNext = value.getClass().getMethod( "getNext" );
+        return getNext.invoke( value );
+    }
+}
@@ -0,0 +1,20 @@
+package org.randombits.facade;
+
+/**
+ * An exception with a field of its own, which must be serialized to be translated.
+ */
+public class CodedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    public CodedException( String message, int code ) {
+        super( message );
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,97 @@
+package org.randombits.facade;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ConcurrentFacadeCache} class.
+ */
+public class ConcurrentFacadeCacheTest {
+
+    /**
+     * Equal to every other instance, to check that the cache compares by identity.
+     */
+    private static class EqualObject {
+        @Override
+        public boolean equals( Object obj ) {
+            return obj instanceof EqualObject;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    private ConcurrentFacadeCache cache;
+
+    private ClassLoader classLoaderB;
+
+    @Before
+    public void setUp() {
+        cache = new ConcurrentFacadeCache();
+        classLoaderB = new IsolatedClassLoader().isolate( ConcurrentFacadeCacheTest.class.getPackage() );
+    }
+
+    @Test
+    public void testIdentityKeys() {
+        Object source1 = new EqualObject();
+        Object source2 = new EqualObject();
+        Object facade1 = "facade1";
+
+        cache.set( source1, facade1, Object.class, classLoaderB );
+        assertSame( facade1, cache.get( source1, Object.class, classLoaderB ) );
+        assertNull( cache.get( source2, Object.class, classLoaderB ) );
+
+        cache.remove( source2, Object.class, classLoaderB );
+        assertSame( facade1, cache.get( source1, Object.class, classLoaderB ) );
+        cache.remove( source1, Object.class, classLoaderB );
+        assertNull( cache.get( source1, Object.class, classLoaderB ) );
+    }
+
+    @Test
+    public void testSeparateClassLoaders() {
+        Object source = new Object();
+        Object facadeB = "facadeB";
+
+        cache.set( source, facadeB, Object.class, classLoaderB );
+        assertSame( facadeB, cache.get( source, Object.class, classLoaderB ) );
+        assertNull( cache.get( source, Object.class, getClass().getClassLoader() ) );
+        // Object's loader is the bootstrap loader, not the target loader.
+        assertNull( cache.get( source, Object.class ) );
+        assertEquals( 1, cache.size( classLoaderB ) );
+        assertEquals( 0, cache.size( null ) );
+    }
+
+    @Test
+    public void testTargetType() {
+        Object source = new Object();
+        cache.set( source, "facade", Object.class, classLoaderB );
+        assertEquals( "facade", cache.get( source, String.class, classLoaderB ) );
+        assertNull( cache.get( source, Integer.class, classLoaderB ) );
+    }
+
+    @Test
+    public void testClear() {
+        Object source = new Object();
+        cache.set( source, "facade", Object.class, classLoaderB );
+        cache.clear();
+        assertNull( cache.get( source, Object.class, classLoaderB ) );
+        assertEquals( 0, cache.size( classLoaderB ) );
+    }
+
+    @Test
+    public void testCollectedFacadesAreRemoved() throws InterruptedException {
+        Object source = new Object();
+        cache.set( source, new StringBuilder( "facade" ), Object.class, classLoaderB );
+
+        for ( int i = 0; i < 100 && cache.size( classLoaderB ) > 0; i++ ) {
+            System.gc();
+            Thread.sleep( 20 );
+        }
+        assertEquals( 0, cache.size( classLoaderB ) );
+        assertNull( cache.get( source, Object.class, classLoaderB ) );
+    }
+}
@@ -0,0 +1,17 @@
+package org.randombits.facade;
+
+/**
+ * An exception whose constructors decorate the message they are given.
+ */
+public class DecoratedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DecoratedException( String message ) {
+        super( "Plugin failed: " + message );
+    }
+
+    public DecoratedException( String message, Throwable cause ) {
+        super( "Plugin failed: " + message, cause );
+    }
+}
@@ -0,0 +1,19 @@
+package org.randombits.facade;
+
+/**
+ * An enum with a constant that has its own class body.
+ */
+public enum Direction {
+    NORTH,
+    SOUTH {
+        @Override
+        public Direction opposite() {
+            return NORTH;
+        }
+    },
+    EAST;
+
+    public Direction opposite() {
+        return this;
+    }
+}
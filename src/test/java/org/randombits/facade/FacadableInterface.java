@@ -24,6 +24,8 @@
 package org.randombits.facade;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 @Facadable
 public interface FacadableInterface {
@@ -51,4 +53,15 @@ public interface FacadableInterface {
     Object getFacadableAsObject();
 
     Object getSerializable();
+
+    CompletableFuture<Object> getFuture();
+
+    @ArrayTypeParameter( 0 )
+    <F> CompletableFuture<F[]> getArrayFuture( Class<F> type );
+
+    void forEachItem( Consumer<FacadableInterface> action );
+
+    void fail( String message, int code );
+
+    boolean isOwnClass( Class<?> type );
 }
@@ -24,6 +24,8 @@
 package org.randombits.facade;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class FacadableObject implements FacadableInterface {
 
@@ -31,6 +33,8 @@ public class FacadableObject implements FacadableInterface {
 
     private FacadableInterface[] array;
 
+    private final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
     public FacadableObject() {}
 
     public FacadableObject( Object value ) {
@@ -99,6 +103,27 @@ public class FacadableObject implements FacadableInterface {
         return SerializableEnum.VALUE;
     }
 
+    public CompletableFuture<Object> getFuture() {
+        return future;
+    }
+
+    public <F> CompletableFuture<F[]> getArrayFuture( Class<F> type ) {
+        return CompletableFuture.completedFuture( getArray( type ) );
+    }
+
+    public void forEachItem( Consumer<FacadableInterface> action ) {
+        for ( FacadableInterface item : array )
+            action.accept( item );
+    }
+
+    public void fail( String message, int code ) {
+        throw new PluginException( message, new CodedException( message, code ) );
+    }
+
+    public boolean isOwnClass( Class<?> type ) {
+        return type == getClass();
+    }
+
     public <F> F[] getArray( Class<F> type ) {
         return ( F[] ) array;
     }
@@ -31,12 +31,28 @@ import org.jmock.api.Invocation;
 import org.jmock.integration.junit4.JMock;
 import org.jmock.integration.junit4.JUnit4Mockery;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.*;
 
@@ -195,6 +211,30 @@ public class FacadeAssistantTest {
         assertSame( classLoaderB, foundB.getClassLoader() );
     }
 
+    @Test
+    public void testFindClassMissing() {
+        assertNull( facadeAssistant.findClass( "org.randombits.facade.Missing", classLoaderB ) );
+        // The miss is remembered.
+        assertNull( facadeAssistant.findClass( "org.randombits.facade.Missing", classLoaderB ) );
+        assertNull( facadeAssistant.findClass( "org.randombits.facade.Missing", (ClassLoader) null ) );
+        assertSame( String.class, facadeAssistant.findClass( String.class.getName(), (ClassLoader) null ) );
+    }
+
+    @Test
+    public void testFindClassWithoutInitializing() {
+        String property = InitializingObject.initializedProperty( classLoaderB );
+        facadeAssistant.setInitializeClasses( false );
+
+        Class<?> found = facadeAssistant.findClass( InitializingObject.class.getName(), classLoaderB );
+        assertSame( classLoaderB, found.getClassLoader() );
+        assertNull( System.getProperty( property ) );
+
+        facadeAssistant.setInitializeClasses( true );
+        ClassLoader classLoaderC = new IsolatedClassLoader().isolate( FacadeAssistantTest.class.getPackage() );
+        facadeAssistant.findClass( InitializingObject.class.getName(), classLoaderC );
+        assertEquals( "true", System.getProperty( InitializingObject.initializedProperty( classLoaderC ) ) );
+    }
+
     @Test
     public void testIsSharedObjectClassLoader() throws IllegalArgumentException, SecurityException,
             InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException,
@@ -303,6 +343,173 @@ public class FacadeAssistantTest {
 
     }
 
+    @Test
+    public void testArrays() throws Exception {
+        int[] numbers = {1, 2, 3};
+        int[] numbersCopy = facadeAssistant.prepareObject( numbers, int[].class, classLoaderB, true );
+        assertNotSame( numbers, numbersCopy );
+        assertArrayEquals( numbers, numbersCopy );
+
+        String[] strings = {"a", "b"};
+        assertSame( strings, facadeAssistant.prepareObject( strings, String[].class, classLoaderB ) );
+
+        // A remote array of facadable items, some of them repeated or null.
+        Object[] mixedB = (Object[]) Array.newInstance( findClass( FacadableObject.class, classLoaderB ), 4 );
+        Object otherB = findClass( FacadableObject.class, classLoaderB ).getConstructor( Object.class, int.class )
+                .newInstance( "other", 1 );
+        mixedB[0] = testB;
+        mixedB[2] = otherB;
+        mixedB[3] = testB;
+        FacadableInterface[] mixedA = facadeAssistant.prepareObject( mixedB, FacadableInterface[].class );
+        assertEquals( 4, mixedA.length );
+        assertEquals( valueB, mixedA[0].getValue() );
+        assertNull( mixedA[1] );
+        assertEquals( "other", mixedA[2].getValue() );
+        assertSame( testB, facadeAssistant.getWrapped( mixedA[3] ) );
+    }
+
+    @Test
+    public void testCachableArrayItems() throws Exception {
+        Class<?> cachableB = findClass( CachableObject.class, classLoaderB );
+        Object[] itemsB = (Object[]) Array.newInstance( cachableB, 3 );
+        itemsB[0] = cachableB.newInstance();
+        itemsB[1] = cachableB.newInstance();
+        itemsB[2] = itemsB[0];
+
+        CachableInterface[] itemsA = facadeAssistant.prepareObject( itemsB, CachableInterface[].class );
+        assertNotSame( itemsA[0], itemsA[1] );
+        assertSame( itemsA[0], itemsA[2] );
+        assertSame( itemsA[1], facadeAssistant.prepareObject( itemsB[1], CachableInterface.class ) );
+        assertSame( itemsB[1], facadeAssistant.getWrapped( itemsA[1] ) );
+    }
+
+    @Test
+    public void testEnums() throws Exception {
+        Class<?> directionB = findClass( Direction.class, classLoaderB );
+        for ( Object constantB : directionB.getEnumConstants() ) {
+            Direction constantA = facadeAssistant.prepareObject( constantB, Direction.class );
+            assertEquals( ( (Enum<?>) constantB ).name(), constantA.name() );
+        }
+        // A constant with a class body is a subclass of the enum.
+        Object southB = directionB.getField( "SOUTH" ).get( null );
+        assertNotSame( directionB, southB.getClass() );
+        assertSame( Direction.SOUTH, facadeAssistant.prepareObject( southB, Direction.class ) );
+
+        Object[] directionsB = (Object[]) Array.newInstance( directionB, 2 );
+        directionsB[0] = southB;
+        Direction[] directionsA = facadeAssistant.prepareObject( directionsB, Direction[].class );
+        assertArrayEquals( new Direction[]{Direction.SOUTH, null}, directionsA );
+    }
+
+    @Test( expected = FacadeException.class )
+    public void testEnumConstantMissing() throws Exception {
+        // SerializableEnum stands in for an older version of the enum, with none of its constants.
+        Object northB = findClass( Direction.class, classLoaderB ).getField( "NORTH" ).get( null );
+        facadeAssistant.prepareObject( northB, SerializableEnum.class );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testEnumSets() throws Exception {
+        Class<?> directionB = findClass( Direction.class, classLoaderB );
+        EnumSet<?> someB = enumSetOf( directionB, "NORTH", "SOUTH" );
+        assertEquals( EnumSet.of( Direction.NORTH, Direction.SOUTH ), facadeAssistant.prepareObject( someB, Set.class, classLoaderA ) );
+
+        EnumSet<?> noneB = enumSetOf( directionB );
+        EnumSet<Direction> noneA = facadeAssistant.prepareObject( noneB, EnumSet.class, classLoaderA );
+        assertTrue( noneA.isEmpty() );
+        noneA.add( Direction.EAST );
+
+        // Sets of shared enums are passed as they are.
+        EnumSet<Thread.State> states = EnumSet.of( Thread.State.NEW );
+        assertSame( states, facadeAssistant.prepareObject( states, Set.class, classLoaderB ) );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testEnumMaps() throws Exception {
+        Class<?> directionB = findClass( Direction.class, classLoaderB );
+        EnumMap<?, Object> routesB = enumMapOf( directionB, "SOUTH", testB, "EAST", "east" );
+
+        EnumMap<Direction, Object> routesA = facadeAssistant.prepareObject( routesB, EnumMap.class, classLoaderA );
+        assertEquals( 2, routesA.size() );
+        assertEquals( "east", routesA.get( Direction.EAST ) );
+        assertTrue( routesA.get( Direction.SOUTH ) instanceof FacadableInterface );
+        assertSame( testB, facadeAssistant.getWrapped( routesA.get( Direction.SOUTH ) ) );
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static <E extends Enum<E>> EnumSet<E> enumSetOf( Class<?> enumType, String... names ) {
+        Class<E> type = (Class<E>) enumType;
+        EnumSet<E> set = EnumSet.noneOf( type );
+        for ( String name : names )
+            set.add( Enum.valueOf( type, name ) );
+        return set;
+    }
+
+    /**
+     * Returns a map of the named constants to the values which follow them.
+     */
+    @SuppressWarnings({"unchecked"})
+    private static <E extends Enum<E>> EnumMap<E, Object> enumMapOf( Class<?> enumType, Object... entries ) {
+        Class<E> type = (Class<E>) enumType;
+        EnumMap<E, Object> map = new EnumMap<E, Object>( type );
+        for ( int i = 0; i < entries.length; i += 2 )
+            map.put( Enum.valueOf( type, (String) entries[i] ), entries[i + 1] );
+        return map;
+    }
+
+    @Test
+    public void testParallelArrays() throws Exception {
+        facadeAssistant.setParallelArrayThreshold( 100 );
+
+        Class<?> classB = findClass( FacadableObject.class, classLoaderB );
+        Object[] itemsB = (Object[]) Array.newInstance( classB, 5000 );
+        for ( int i = 0; i < itemsB.length; i++ )
+            itemsB[i] = i % 7 == 0 ? testB : classB.getConstructor( Object.class, int.class ).newInstance( "item" + i, i );
+
+        FacadableInterface[] itemsA = facadeAssistant.prepareObject( itemsB, FacadableInterface[].class );
+        assertEquals( FacadableInterface.class, itemsA.getClass().getComponentType() );
+        assertEquals( itemsB.length, itemsA.length );
+        for ( int i = 0; i < itemsA.length; i++ ) {
+            assertTrue( facadeAssistant.isLocalFacade( itemsA[i] ) );
+            assertSame( itemsB[i], facadeAssistant.getWrapped( itemsA[i] ) );
+        }
+    }
+
+    @Test
+    public void testParallelArraysKeepContextClassLoader() throws Exception {
+        facadeAssistant.setParallelArrayThreshold( 100 );
+        final Set<ClassLoader> contextLoaders = Collections.newSetFromMap( new ConcurrentHashMap<ClassLoader, Boolean>() );
+        facadeAssistant.registerTranscoder( SerializableValue.class.getName(), new Transcoder() {
+            public Object transcode( Object sourceObject, Class<?> targetClass, FacadeAssistant assistant ) {
+                contextLoaders.add( Thread.currentThread().getContextClassLoader() );
+                return null;
+            }
+        } );
+
+        SerializableValue[] values = new SerializableValue[5000];
+        for ( int i = 0; i < values.length; i++ )
+            values[i] = new SerializableValue( i, null );
+
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader( classLoaderB );
+        try {
+            Class<?> arrayB = Array.newInstance( findClass( SerializableValue.class, classLoaderB ), 0 ).getClass();
+            Object[] copies = (Object[]) facadeAssistant.prepareObject( values, arrayB, classLoaderB );
+            assertEquals( values.length, copies.length );
+        } finally {
+            thread.setContextClassLoader( previous );
+        }
+        assertEquals( Collections.singleton( classLoaderB ), contextLoaders );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testParallelArrayThresholdTooSmall() {
+        facadeAssistant.setParallelArrayThreshold( 0 );
+    }
+
     @Test
     public void testFacadedAsObject() {
         FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
@@ -311,6 +518,139 @@ public class FacadeAssistantTest {
         assertTrue( value instanceof FacadableInterface );
     }
 
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testFutureReturnValue() throws Exception {
+        FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        CompletableFuture<Object> futureA = facadeOfB.getFuture();
+        CompletableFuture<Object> futureB = (CompletableFuture<Object>) testB.getClass().getMethod( "getFuture" )
+                .invoke( testB );
+        assertNotSame( futureB, futureA );
+        assertFalse( futureA.isDone() );
+
+        futureB.complete( testB );
+        assertTrue( futureA.isDone() );
+        FacadableInterface resultA = (FacadableInterface) futureA.get();
+        assertSame( testB, facadeAssistant.getWrapped( resultA ) );
+        assertNotSame( futureA, facadeOfB.getFuture() );
+    }
+
+    @Test
+    public void testFutureArrayReturnValue() throws Exception {
+        FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        FacadableInterface[] array = facadeOfB.getArrayFuture( FacadableInterface.class ).get();
+        assertEquals( 3, array.length );
+        assertEquals( 1, array[1].getValue() );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testFutureCancelled() throws Exception {
+        FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        CompletableFuture<Object> futureB = (CompletableFuture<Object>) testB.getClass().getMethod( "getFuture" )
+                .invoke( testB );
+
+        CompletableFuture<Object> cancelledA = facadeOfB.getFuture();
+        assertTrue( cancelledA.cancel( true ) );
+        assertTrue( futureB.isCancelled() );
+        try {
+            facadeOfB.getFuture().get();
+            fail( "Expected the cancellation to be passed on" );
+        } catch ( CancellationException e ) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testClassArgumentResolved() {
+        FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        assertTrue( facadeOfB.isOwnClass( FacadableObject.class ) );
+        assertFalse( facadeOfB.isOwnClass( FacadableSubclass.class ) );
+    }
+
+    @Test
+    public void testLambdaCallback() {
+        FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        final List<Object> values = new ArrayList<Object>();
+        facadeOfB.forEachItem( item -> values.add( item.getValue() ) );
+        assertEquals( Arrays.asList( 0, 1, 2 ), values );
+    }
+
+    @Test
+    public void testLambdaFacadeCached() throws Exception {
+        Consumer<FacadableInterface> action = item -> {};
+        Object facade = facadeAssistant.prepareObject( action, Consumer.class, classLoaderB );
+        assertNotSame( action, facade );
+        assertTrue( Proxy.isProxyClass( facade.getClass() ) );
+        // Lambdas can't be annotated, so their facades aren't cached.
+        assertNotSame( facade, facadeAssistant.prepareObject( action, Consumer.class, classLoaderB ) );
+
+        CachableAction cachable = new CachableAction();
+        facade = facadeAssistant.prepareObject( cachable, Consumer.class, classLoaderB );
+        assertTrue( Proxy.isProxyClass( facade.getClass() ) );
+        assertSame( facade, facadeAssistant.prepareObject( cachable, Consumer.class, classLoaderB ) );
+
+        // Objects are only facaded as functional interfaces they implement.
+        Runnable runnable = () -> {};
+        assertSame( runnable, facadeAssistant.prepareObject( runnable, Supplier.class, classLoaderB ) );
+    }
+
+    @Test
+    public void testSerializableCallbackCopied() {
+        Object copy = facadeAssistant.prepareObject( new SerializableTask(), Runnable.class, classLoaderB );
+        assertFalse( Proxy.isProxyClass( copy.getClass() ) );
+        assertSame( classLoaderB, copy.getClass().getClassLoader() );
+        assertEquals( SerializableTask.class.getName(), copy.getClass().getName() );
+    }
+
+    @Test
+    public void testExceptionTranslated() {
+        FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        for ( int i = 0; i < 2; i++ ) {
+            try {
+                facadeOfB.fail( "timed out", 504 );
+                fail( "Expected a PluginException" );
+            } catch ( PluginException e ) {
+                assertEquals( "timed out", e.getMessage() );
+
+                // The cause has a field of its own, so is serialized.
+                CodedException cause = (CodedException) e.getCause();
+                assertEquals( "timed out", cause.getMessage() );
+                assertEquals( 504, cause.getCode() );
+
+                // It reports where the original was thrown.
+                StackTraceElement top = e.getStackTrace()[0];
+                assertEquals( FacadableObject.class.getName(), top.getClassName() );
+                assertEquals( "fail", top.getMethodName() );
+
+                // Nothing from the plugin's class loader is kept.
+                assertEquals( 0, e.getSuppressed().length );
+                for ( Throwable t = e; t != null; t = t.getCause() ) {
+                    assertNotSame( classLoaderB, t.getClass().getClassLoader() );
+                    for ( Throwable suppressed : t.getSuppressed() )
+                        assertNotSame( classLoaderB, suppressed.getClass().getClassLoader() );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDecoratedExceptionKeepsMessage() throws Exception {
+        Throwable decorated = (Throwable) findClass( DecoratedException.class, classLoaderB )
+                .getConstructor( String.class ).newInstance( "timed out" );
+        Throwable source = (Throwable) findClass( PluginException.class, classLoaderB )
+                .getConstructor( String.class, Throwable.class ).newInstance( "timed out", decorated );
+
+        Throwable translated = ExceptionTranslator.translate( source, classLoaderA, facadeAssistant );
+        assertEquals( PluginException.class, translated.getClass() );
+        assertEquals( "timed out", translated.getMessage() );
+
+        // The cause is serialized rather than recreated, so its message isn't decorated again.
+        Throwable cause = translated.getCause();
+        assertEquals( DecoratedException.class, cause.getClass() );
+        assertEquals( "Plugin failed: timed out", cause.getMessage() );
+    }
+
     @Test
     public void testFacadedSubclass() throws IllegalArgumentException, SecurityException, InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException, ClassNotFoundException {
 
@@ -321,6 +661,135 @@ public class FacadeAssistantTest {
         assertTrue( facadeAssistant.isLocalFacade( facadeB ) );
     }
 
+    @Test
+    public void testConcurrentFacades() throws InterruptedException {
+        final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+        Thread[] threads = new Thread[8];
+        for ( int i = 0; i < threads.length; i++ ) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for ( int j = 0; j < 100; j++ ) {
+                            FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+                            assertEquals( valueB, facadeOfB.getValue() );
+                            assertSame( FacadableInterface.Result.FACADE, facadeOfB.checkInterface( testA ) );
+                        }
+                    } catch ( Throwable t ) {
+                        errors.add( t );
+                    }
+                }
+            };
+        }
+        for ( Thread thread : threads )
+            thread.start();
+        for ( Thread thread : threads )
+            thread.join();
+
+        assertTrue( errors.toString(), errors.isEmpty() );
+    }
+
+    @Test
+    public void testProxyClassReused() throws Exception {
+        FacadableInterface facade1 = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        Object otherB = findClass( FacadableObject.class, classLoaderB ).getConstructor( Object.class, int.class )
+                .newInstance( "other", 1 );
+        FacadableInterface facade2 = facadeAssistant.prepareObject( otherB, FacadableInterface.class );
+
+        assertTrue( Proxy.isProxyClass( facade1.getClass() ) );
+        assertSame( facade1.getClass(), facade2.getClass() );
+        assertNotSame( facade1, facade2 );
+        assertEquals( "other", facade2.getValue() );
+    }
+
+    @Test
+    public void testProxyClassCount() throws Exception {
+        assertEquals( 0, facadeAssistant.getProxyClassCount( classLoaderA ) );
+
+        Object subclassB = findClass( FacadableSubclass.class, classLoaderB ).getConstructor( Object.class, int.class )
+                .newInstance( valueB, 3 );
+        FacadableInterface facade1 = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        FacadableInterface facade2 = facadeAssistant.prepareObject( subclassB, FacadableInterface.class );
+
+        // Different source classes with the same interfaces share a proxy class.
+        assertSame( facade1.getClass(), facade2.getClass() );
+        assertEquals( 1, facadeAssistant.getProxyClassCount( classLoaderA ) );
+        assertEquals( 0, facadeAssistant.getProxyClassCount( classLoaderB ) );
+
+        facadeAssistant.prepareObject( findClass( CachableObject.class, classLoaderB ).newInstance(), classLoaderA );
+        assertEquals( 2, facadeAssistant.getProxyClassCount( classLoaderA ) );
+    }
+
+    @Test
+    public void testInvocationHandlerFactory() throws Exception {
+        Class<?> handlerClassB = findClass( FacadeInvocationHandler.class, classLoaderB );
+        InvocationHandlerFactory factory = InvocationHandlerFactory.getInstance( handlerClassB );
+        assertSame( factory, InvocationHandlerFactory.getInstance( handlerClassB ) );
+
+        InvocationHandler handler = factory.create( testA );
+        assertSame( handlerClassB, handler.getClass() );
+
+        assertNull( InvocationHandlerFactory.getInstance( String.class ) );
+    }
+
+    @Test
+    public void testGeneratedFacades() {
+        Assume.assumeTrue( FacadeClassGenerator.isAvailable() );
+        facadeAssistant.setFacadeEngine( FacadeEngine.GENERATED );
+
+        // Remote made local
+        FacadableInterface facadeOfB = facadeAssistant.prepareObject( testB, FacadableInterface.class );
+        assertFalse( Proxy.isProxyClass( facadeOfB.getClass() ) );
+        assertTrue( facadeAssistant.isLocalFacade( facadeOfB ) );
+        assertSame( testB, facadeAssistant.getWrapped( facadeOfB ) );
+        assertEquals( valueB, facadeOfB.getValue() );
+        assertEquals( valueB, facadeOfB.toString() );
+        assertSame( FacadableInterface.Result.FACADE, facadeOfB.checkInterface( testA ) );
+
+        FacadableInterface[] array = facadeOfB.getArray( FacadableInterface.class );
+        assertEquals( 3, array.length );
+        for ( int i = 0; i < array.length; i++ ) {
+            assertEquals( i, array[i].getValue() );
+        }
+
+        // Local made remote
+        Object facadeOfA = facadeAssistant.prepareObject( testA, interfaceB );
+        assertTrue( interfaceB.isInstance( facadeOfA ) );
+        assertFalse( Proxy.isProxyClass( facadeOfA.getClass() ) );
+        assertTrue( facadeAssistant.isFacade( facadeOfA ) );
+        assertFalse( facadeAssistant.isLocalFacade( facadeOfA ) );
+        assertSame( testA, facadeAssistant.getWrapped( facadeOfA ) );
+
+        // The generated class is reused.
+        assertSame( facadeOfB.getClass(), facadeAssistant.prepareObject( testB, FacadableInterface.class ).getClass() );
+    }
+
+    @Test
+    public void testImmutableValue() throws Exception {
+        ImmutableValue value = new ImmutableValue( "child", 2, true, new ImmutableValue( "parent", 1, false, null ) );
+
+        Object copy = facadeAssistant.prepareObject( value, classLoaderB );
+        assertSame( classLoaderB, copy.getClass().getClassLoader() );
+        assertEquals( "child", copy.getClass().getMethod( "getName" ).invoke( copy ) );
+        assertEquals( 2, copy.getClass().getMethod( "getCount" ).invoke( copy ) );
+        assertEquals( true, copy.getClass().getMethod( "isActive" ).invoke( copy ) );
+
+        Object parent = copy.getClass().getMethod( "getParent" ).invoke( copy );
+        assertSame( copy.getClass(), parent.getClass() );
+        assertEquals( "parent", parent.getClass().getMethod( "getName" ).invoke( parent ) );
+    }
+
+    @Test
+    public void testPartialConstructorValue() throws Exception {
+        PartialValue value = new PartialValue( "id" );
+        value.setNote( "important" );
+
+        Object copy = facadeAssistant.prepareObject( value, classLoaderB );
+        assertSame( classLoaderB, copy.getClass().getClassLoader() );
+        assertEquals( "id", copy.getClass().getMethod( "getId" ).invoke( copy ) );
+        assertEquals( "important", copy.getClass().getMethod( "getNote" ).invoke( copy ) );
+    }
+
     @Test
     public void testCachableFacades() throws ClassNotFoundException, IllegalAccessException, InstantiationException {
         FacadeAssistant facadeAssistant = new FacadeAssistant();
@@ -379,6 +848,16 @@ public class FacadeAssistantTest {
 
     }
 
+    @Test
+    public void testCachableFacadesAsObject() throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+        Object cachableInstance = findClass( CachableObject.class, classLoaderB ).newInstance();
+
+        Object facadedObject1 = facadeAssistant.prepareObject( cachableInstance, classLoaderA );
+        Object facadedObject2 = facadeAssistant.prepareObject( cachableInstance, classLoaderA );
+        assertTrue( facadedObject1 instanceof CachableInterface );
+        assertSame( facadedObject1, facadedObject2 );
+    }
+
     @Test
     public void testUncachableFacades() throws ClassNotFoundException, IllegalAccessException, InstantiationException {
         FacadeAssistant facadeAssistant = new FacadeAssistant();
@@ -454,6 +933,21 @@ public class FacadeAssistantTest {
         public void doTest( Object context ) throws Throwable;
     }
 
+    @Cachable
+    public static class CachableAction implements Consumer<FacadableInterface> {
+
+        public void accept( FacadableInterface item ) {
+        }
+    }
+
+    public static class SerializableTask implements Runnable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public void run() {
+        }
+    }
+
     public static class TestSerializableButUnavailable implements Tester {
 
         public void doTest( Object context ) {
@@ -0,0 +1,279 @@
+package org.randombits.facade;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the lazy collection views created by {@link FacadeAssistant}.
+ */
+public class FacadeCollectionsTest {
+
+    private FacadeAssistant facadeAssistant;
+
+    private ClassLoader classLoaderA;
+
+    private Object firstB;
+
+    private Object secondB;
+
+    @Before
+    public void setUp() throws Exception {
+        facadeAssistant = new FacadeAssistant();
+        facadeAssistant.setCollectionViews( true );
+        classLoaderA = getClass().getClassLoader();
+
+        ClassLoader classLoaderB = new IsolatedClassLoader().isolate( FacadeCollectionsTest.class.getPackage() );
+        Class<?> classB = Class.forName( FacadableObject.class.getName(), true, classLoaderB );
+        firstB = classB.getConstructor( Object.class, int.class ).newInstance( "first", 1 );
+        secondB = classB.getConstructor( Object.class, int.class ).newInstance( "second", 2 );
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        List<Object> listB = new ArrayList<Object>();
+        listB.add( firstB );
+        assertSame( listB, new FacadeAssistant().prepareObject( listB, List.class, classLoaderA ) );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testListView() {
+        List<Object> listB = new ArrayList<Object>();
+        listB.add( firstB );
+        listB.add( "shared" );
+
+        List<Object> listA = facadeAssistant.prepareObject( listB, List.class, classLoaderA );
+        assertNotSame( listB, listA );
+        assertTrue( listA instanceof RandomAccess );
+        assertEquals( 2, listA.size() );
+
+        FacadableInterface firstA = (FacadableInterface) listA.get( 0 );
+        assertEquals( "first", firstA.getValue() );
+        assertSame( firstA, listA.get( 0 ) );
+        assertEquals( "shared", listA.get( 1 ) );
+        assertTrue( listA.contains( firstA ) );
+        assertEquals( 0, listA.indexOf( firstA ) );
+
+        // Writes go through to the original, unwrapping facades.
+        listA.add( firstA );
+        assertSame( firstB, listB.get( 2 ) );
+        listA.set( 1, "changed" );
+        assertEquals( "changed", listB.get( 1 ) );
+
+        assertSame( firstA, listA.subList( 1, 3 ).get( 1 ) );
+
+        Iterator<Object> i = listA.iterator();
+        assertSame( firstA, i.next() );
+        i.remove();
+        assertEquals( 2, listB.size() );
+
+        // Passing the view back gives a view of the original.
+        List<?> viewOfView = facadeAssistant.prepareObject( listA, List.class, classLoaderA );
+        assertSame( listA, viewOfView );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testWritesWithUnknownOrigin() {
+        List<Object> listB = new ArrayList<Object>();
+        listB.add( firstB );
+
+        List<Object> listA = facadeAssistant.prepareObject( listB, List.class, classLoaderA );
+        listA.add( "shared" );
+        assertEquals( "shared", listB.get( 1 ) );
+        try {
+            listA.add( new FacadableObject( "local" ) );
+            fail( "Expected an element which can't be converted to be rejected" );
+        } catch ( UnsupportedOperationException e ) {
+            assertEquals( 2, listB.size() );
+        }
+        assertFalse( listA.contains( new FacadableObject( "local" ) ) );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testWritesConvertedForOrigin() {
+        ClassLoader classLoaderB = firstB.getClass().getClassLoader();
+        List<Object> listB = new ArrayList<Object>();
+        listB.add( firstB );
+
+        List<Object> listA = facadeAssistant.prepareObject( listB, List.class, classLoaderA, false, null,
+                classLoaderB );
+        listA.add( new FacadableObject( "local" ) );
+        assertSame( classLoaderB, listB.get( 1 ).getClass().getClassLoader() );
+        assertTrue( facadeAssistant.isFacade( listB.get( 1 ) ) );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testSetView() {
+        Set<Object> setB = new LinkedHashSet<Object>();
+        setB.add( firstB );
+
+        Set<Object> setA = facadeAssistant.prepareObject( setB, Set.class, classLoaderA );
+        FacadableInterface firstA = (FacadableInterface) setA.iterator().next();
+        assertEquals( "first", firstA.getValue() );
+        assertTrue( setA.contains( firstA ) );
+        assertFalse( setA.add( firstA ) );
+        assertTrue( setA.remove( firstA ) );
+        assertTrue( setB.isEmpty() );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testIteratorView() {
+        List<Object> listB = new ArrayList<Object>();
+        listB.add( firstB );
+        listB.add( null );
+        listB.add( secondB );
+
+        Iterator<Object> iteratorA = facadeAssistant.prepareObject( listB.iterator(), Iterator.class, classLoaderA );
+        assertEquals( "first", ( (FacadableInterface) iteratorA.next() ).getValue() );
+        iteratorA.remove();
+        assertEquals( 2, listB.size() );
+        assertNull( iteratorA.next() );
+        assertEquals( "second", ( (FacadableInterface) iteratorA.next() ).getValue() );
+        assertFalse( iteratorA.hasNext() );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testIterableViewReadingAhead() {
+        facadeAssistant.setIteratorBatchSize( 2 );
+        List<Object> listB = new ArrayList<Object>();
+        for ( int i = 0; i < 5; i++ )
+            listB.add( i % 2 == 0 ? firstB : secondB );
+
+        Iterable<Object> iterableA = facadeAssistant.prepareObject( listB, Iterable.class, classLoaderA );
+        for ( int pass = 0; pass < 2; pass++ ) {
+            int count = 0;
+            for ( Object itemA : iterableA ) {
+                assertEquals( count % 2 == 0 ? "first" : "second", ( (FacadableInterface) itemA ).getValue() );
+                count++;
+            }
+            assertEquals( 5, count );
+        }
+
+        Iterator<Object> iteratorA = iterableA.iterator();
+        iteratorA.next();
+        try {
+            iteratorA.remove();
+            fail( "Expected an UnsupportedOperationException" );
+        } catch ( UnsupportedOperationException e ) {
+            // Expected.
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testIteratorViewReadingAheadMixedElements() {
+        facadeAssistant.setIteratorBatchSize( 3 );
+        List<Object> listB = Arrays.asList( firstB, "shared", null, secondB, firstB );
+
+        Iterator<Object> iteratorA = facadeAssistant.prepareObject( listB.iterator(), Iterator.class, classLoaderA );
+        assertEquals( "first", ( (FacadableInterface) iteratorA.next() ).getValue() );
+        assertSame( listB.get( 1 ), iteratorA.next() );
+        assertNull( iteratorA.next() );
+        assertEquals( "second", ( (FacadableInterface) iteratorA.next() ).getValue() );
+        Object lastA = iteratorA.next();
+        assertTrue( facadeAssistant.isFacade( lastA ) );
+        assertSame( firstB, facadeAssistant.getWrapped( lastA ) );
+        assertFalse( iteratorA.hasNext() );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testStreamView() {
+        List<Object> listB = new ArrayList<Object>();
+        for ( int i = 0; i < 10000; i++ )
+            listB.add( i % 2 == 0 ? firstB : secondB );
+        final AtomicBoolean closed = new AtomicBoolean();
+        Stream<Object> streamB = listB.parallelStream().onClose( new Runnable() {
+            public void run() {
+                closed.set( true );
+            }
+        } );
+
+        Stream<Object> streamA = facadeAssistant.prepareObject( streamB, Stream.class, classLoaderA );
+        assertTrue( streamA.isParallel() );
+        List<Object> values = streamA.map( new Function<Object, Object>() {
+            public Object apply( Object itemA ) {
+                return ( (FacadableInterface) itemA ).getValue();
+            }
+        } ).collect( Collectors.toList() );
+        assertEquals( 10000, values.size() );
+        assertEquals( "first", values.get( 0 ) );
+        assertEquals( "second", values.get( 9999 ) );
+
+        streamA.close();
+        assertTrue( closed.get() );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testSpliteratorView() {
+        List<Object> listB = new ArrayList<Object>();
+        listB.add( firstB );
+        listB.add( secondB );
+
+        Spliterator<Object> spliteratorA = facadeAssistant.prepareObject( listB.spliterator(), Spliterator.class,
+                classLoaderA );
+        assertEquals( 2, spliteratorA.getExactSizeIfKnown() );
+        Spliterator<Object> prefixA = spliteratorA.trySplit();
+        assertNotNull( prefixA );
+
+        final List<Object> values = new ArrayList<Object>();
+        Consumer<Object> collector = new Consumer<Object>() {
+            public void accept( Object itemA ) {
+                values.add( ( (FacadableInterface) itemA ).getValue() );
+            }
+        };
+        assertTrue( prefixA.tryAdvance( collector ) );
+        spliteratorA.forEachRemaining( collector );
+        assertEquals( Arrays.asList( "first", "second" ), values );
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testMapView() {
+        Map<Object, Object> mapB = new HashMap<Object, Object>();
+        mapB.put( "first", firstB );
+
+        Map<Object, Object> mapA = facadeAssistant.prepareObject( mapB, Map.class, classLoaderA );
+        FacadableInterface firstA = (FacadableInterface) mapA.get( "first" );
+        assertEquals( "first", firstA.getValue() );
+        assertTrue( mapA.containsValue( firstA ) );
+
+        Map.Entry<Object, Object> entry = mapA.entrySet().iterator().next();
+        assertEquals( "first", entry.getKey() );
+        assertSame( firstA, entry.getValue() );
+
+        FacadableInterface secondA = (FacadableInterface) facadeAssistant.prepareObject( secondB, Object.class,
+                classLoaderA );
+        assertSame( firstA, entry.setValue( secondA ) );
+        assertSame( secondB, mapB.get( "first" ) );
+
+        mapA.put( "again", firstA );
+        assertSame( firstB, mapB.get( "again" ) );
+        assertSame( firstA, mapA.remove( "again" ) );
+        assertEquals( 1, mapB.size() );
+    }
+}
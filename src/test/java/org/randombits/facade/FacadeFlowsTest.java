@@ -0,0 +1,134 @@
+package org.randombits.facade;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the <code>Flow</code> views created by {@link FacadeAssistant}. The <code>Flow</code>
+ * interfaces are only available from Java 9, so they are used reflectively.
+ */
+public class FacadeFlowsTest {
+
+    private FacadeAssistant facadeAssistant;
+
+    private ClassLoader classLoaderA;
+
+    private ClassLoader classLoaderB;
+
+    private Class<?> publisherClass;
+
+    private Class<?> subscriberClass;
+
+    private Class<?> subscriptionClass;
+
+    private List<Object> itemsB;
+
+    private long requested;
+
+    private int emitted;
+
+    @Before
+    public void setUp() throws Exception {
+        try {
+            publisherClass = Class.forName( "java.util.concurrent.Flow$Publisher" );
+            subscriberClass = Class.forName( "java.util.concurrent.Flow$Subscriber" );
+            subscriptionClass = Class.forName( "java.util.concurrent.Flow$Subscription" );
+        } catch ( ClassNotFoundException e ) {
+            Assume.assumeNoException( e );
+        }
+
+        facadeAssistant = new FacadeAssistant();
+        facadeAssistant.setCollectionViews( true );
+        classLoaderA = getClass().getClassLoader();
+
+        classLoaderB = new IsolatedClassLoader().isolate( FacadeFlowsTest.class.getPackage() );
+        Class<?> classB = Class.forName( FacadableObject.class.getName(), true, classLoaderB );
+        itemsB = Arrays.asList( classB.getConstructor( Object.class, int.class ).newInstance( "first", 1 ), "shared",
+                classB.getConstructor( Object.class, int.class ).newInstance( "second", 2 ) );
+    }
+
+    /**
+     * A publisher from class loader 'B' which sends the items as they are requested.
+     */
+    private Object createPublisher() {
+        return newProxy( classLoaderB, publisherClass, new InvocationHandler() {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                final Object subscriber = args[0];
+                Object subscription = newProxy( classLoaderB, subscriptionClass, new InvocationHandler() {
+                    public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                        if ( "request".equals( method.getName() ) ) {
+                            long n = (Long) args[0];
+                            requested += n;
+                            for ( ; n > 0 && emitted < itemsB.size(); n-- )
+                                call( subscriber, "onNext", Object.class, itemsB.get( emitted++ ) );
+                            if ( emitted == itemsB.size() )
+                                call( subscriber, "onComplete" );
+                        }
+                        return null;
+                    }
+                } );
+                call( subscriber, "onSubscribe", subscriptionClass, subscription );
+                return null;
+            }
+        } );
+    }
+
+    @Test
+    public void testPublisherView() throws Exception {
+        Object publisherB = createPublisher();
+        Object publisherA = facadeAssistant.prepareObject( publisherB, publisherClass, classLoaderA );
+        assertNotSame( publisherB, publisherA );
+        assertSame( publisherA, facadeAssistant.prepareObject( publisherA, publisherClass, classLoaderA ) );
+
+        final List<Object> received = new ArrayList<Object>();
+        final Object[] subscription = new Object[1];
+        final boolean[] complete = new boolean[1];
+        Object subscriberA = newProxy( classLoaderA, subscriberClass, new InvocationHandler() {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                if ( "onSubscribe".equals( method.getName() ) )
+                    subscription[0] = args[0];
+                else if ( "onNext".equals( method.getName() ) )
+                    received.add( args[0] );
+                else if ( "onComplete".equals( method.getName() ) )
+                    complete[0] = true;
+                return null;
+            }
+        } );
+        call( publisherA, "subscribe", subscriberClass, subscriberA );
+
+        call( subscription[0], "request", long.class, 2L );
+        assertEquals( 2, requested );
+        assertEquals( 2, received.size() );
+        assertEquals( "first", ( (FacadableInterface) received.get( 0 ) ).getValue() );
+        assertEquals( "shared", received.get( 1 ) );
+        assertFalse( complete[0] );
+
+        call( subscription[0], "request", long.class, 5L );
+        assertEquals( 7, requested );
+        assertEquals( 3, received.size() );
+        assertEquals( "second", ( (FacadableInterface) received.get( 2 ) ).getValue() );
+        assertTrue( complete[0] );
+    }
+
+    private static Object newProxy( ClassLoader loader, Class<?> type, InvocationHandler handler ) {
+        return Proxy.newProxyInstance( loader, new Class<?>[]{type}, handler );
+    }
+
+    private static void call( Object target, String name ) throws Exception {
+        target.getClass().getMethod( name ).invoke( target );
+    }
+
+    private static void call( Object target, String name, Class<?> type, Object arg ) throws Exception {
+        target.getClass().getMethod( name, type ).invoke( target, arg );
+    }
+}
@@ -34,6 +34,7 @@ import java.lang.reflect.Method;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 public class FacadeInvocationHandlerTest {
     private Mockery context = new JUnit4Mockery();
@@ -70,6 +71,45 @@ public class FacadeInvocationHandlerTest {
 
     }
 
+    @Test
+    public void testInvokeWithReflection() throws Throwable {
+        FacadeAssistant assistant = FacadeAssistant.getInstance();
+        assistant.setInvocationEngine( InvocationEngine.REFLECTION );
+        try {
+            testInvoke();
+        } finally {
+            assistant.setInvocationEngine( InvocationEngine.METHOD_HANDLES );
+        }
+    }
+
+    @Test
+    public void testInvokeThrowsTargetException() throws Throwable {
+        final FacadableInterface test = context.mock( FacadableInterface.class );
+        final IllegalStateException exception = new IllegalStateException( "failure" );
+        FacadeInvocationHandler handler = new FacadeInvocationHandler( test );
+        Method method = FacadableInterface.class.getMethod( "getValue" );
+
+        context.checking( new Expectations() {
+            {
+                exactly( 2 ).of( test ).getValue();
+                will( throwException( exception ) );
+            }
+        } );
+
+        FacadeAssistant assistant = FacadeAssistant.getInstance();
+        for ( InvocationEngine engine : new InvocationEngine[]{InvocationEngine.METHOD_HANDLES, InvocationEngine.REFLECTION} ) {
+            assistant.setInvocationEngine( engine );
+            try {
+                handler.invoke( null, method, null );
+                fail( "Expected the target exception to be thrown." );
+            } catch ( IllegalStateException e ) {
+                assertSame( exception, e );
+            } finally {
+                assistant.setInvocationEngine( InvocationEngine.METHOD_HANDLES );
+            }
+        }
+    }
+
     @Test
     public void testWrapped() {
         final FacadableInterface test = context.mock( FacadableInterface.class );
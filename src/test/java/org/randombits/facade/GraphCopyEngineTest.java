@@ -0,0 +1,154 @@
+package org.randombits.facade;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link GraphCopyEngine} class.
+ */
+public class GraphCopyEngineTest {
+
+    /**
+     * Counts the copies left to serialization.
+     */
+    private static class CountingEngine extends BufferedSerializationEngine {
+
+        private int count;
+
+        @Override
+        public Object copy( Object sourceObject, ClassLoader targetClassLoader ) throws IOException, ClassNotFoundException {
+            count++;
+            return super.copy( sourceObject, targetClassLoader );
+        }
+    }
+
+    private CountingEngine fallback;
+
+    private GraphCopyEngine engine;
+
+    private ClassLoader classLoaderB;
+
+    @Before
+    public void setUp() {
+        fallback = new CountingEngine();
+        engine = new GraphCopyEngine( fallback );
+        classLoaderB = new IsolatedClassLoader().isolate( GraphCopyEngineTest.class.getPackage() );
+    }
+
+    @Test
+    public void testCopyGraph() throws Exception {
+        Assume.assumeTrue( GraphCopyEngine.isAvailable() );
+
+        GraphNode first = new GraphNode( "first" );
+        GraphNode second = new GraphNode( "second" );
+        first.setNext( second );
+        second.setNext( first );
+        first.setNumbers( new int[]{1, 2, 3} );
+        first.getChildren().add( second );
+        first.getChildren().add( SerializableEnum.VALUE );
+        first.getChildren().add( 42L );
+
+        Object copy = engine.copy( first, classLoaderB );
+        assertEquals( 0, fallback.count );
+        assertSame( classLoaderB, copy.getClass().getClassLoader() );
+        assertEquals( "first", get( copy, "getName" ) );
+        // Transient fields are not copied, as in deserialization.
+        assertNull( get( copy, "getCached" ) );
+        assertArrayEquals( new int[]{1, 2, 3}, (int[]) get( copy, "getNumbers" ) );
+
+        // Cycles and shared references are preserved.
+        Object secondCopy = get( copy, "getNext" );
+        assertEquals( "second", get( secondCopy, "getName" ) );
+        assertSame( copy, get( secondCopy, "getNext" ) );
+
+        List<?> children = (List<?>) get( copy, "getChildren" );
+        assertEquals( 3, children.size() );
+        assertSame( secondCopy, children.get( 0 ) );
+        assertSame( classLoaderB, children.get( 1 ).getClass().getClassLoader() );
+        assertEquals( SerializableEnum.VALUE.name(), ( (Enum<?>) children.get( 1 ) ).name() );
+        assertEquals( 42L, children.get( 2 ) );
+    }
+
+    @Test
+    public void testCustomSerializationFallsBack() throws Exception {
+        GraphNode node = new GraphNode( "node" );
+        node.setNext( new GraphNode.Custom( "custom" ) );
+
+        Object copy = engine.copy( node, classLoaderB );
+        assertEquals( 1, fallback.count );
+        assertSame( classLoaderB, copy.getClass().getClassLoader() );
+        assertEquals( "custom", get( get( copy, "getNext" ), "getName" ) );
+    }
+
+    @Test
+    public void testMismatchedSerialVersionFallsBack() throws Exception {
+        Assume.assumeTrue( GraphCopyEngine.isAvailable() );
+        ClassLoader classLoaderC = new VersionedClassLoader( VersionedValue.SERIAL_VERSION_UID + 1 )
+                .isolate( GraphCopyEngineTest.class.getPackage() );
+
+        Object copy = engine.copy( new VersionedValue( "value" ), classLoaderB );
+        assertEquals( 0, fallback.count );
+        assertEquals( "value", get( copy, "getName" ) );
+
+        try {
+            engine.copy( new VersionedValue( "value" ), classLoaderC );
+            fail( "Expected the copy to be rejected, as deserialization would" );
+        } catch ( InvalidClassException e ) {
+            assertEquals( 1, fallback.count );
+        }
+    }
+
+    /**
+     * Loads {@link VersionedValue} with a different <code>serialVersionUID</code>.
+     */
+    private static class VersionedClassLoader extends IsolatedClassLoader {
+
+        private final long version;
+
+        VersionedClassLoader( long version ) {
+            this.version = version;
+        }
+
+        @Override
+        protected Class<?> findStubClass( String name ) throws ClassNotFoundException {
+            if ( !VersionedValue.class.getName().equals( name ) )
+                return super.findStubClass( name );
+            try {
+                InputStream in = VersionedValue.class.getResourceAsStream( "VersionedValue.class" );
+                byte[] b = IOUtils.toByteArray( in );
+                in.close();
+                replace( b, VersionedValue.SERIAL_VERSION_UID, version );
+                return defineClass( name, b, 0, b.length );
+            } catch ( IOException e ) {
+                throw new ClassNotFoundException( name, e );
+            }
+        }
+
+        private static void replace( byte[] b, long value, long replacement ) {
+            byte[] pattern = ByteBuffer.allocate( 8 ).putLong( value ).array();
+            for ( int i = 0; i + pattern.length <= b.length; i++ ) {
+                if ( ByteBuffer.wrap( b, i, pattern.length ).equals( ByteBuffer.wrap( pattern ) ) ) {
+                    ByteBuffer.wrap( b, i, pattern.length ).putLong( replacement );
+                    return;
+                }
+            }
+            throw new IllegalStateException( "Constant " + value + " not found" );
+        }
+    }
+
+    private Object get( Object object, String getter ) throws Exception {
+        Method method = object.getClass().getMethod( getter );
+        return method.invoke( object );
+    }
+}
@@ -0,0 +1,74 @@
+package org.randombits.facade;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node in a serializable object graph.
+ */
+public class GraphNode implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+
+    private GraphNode next;
+
+    private final List<Object> children = new ArrayList<Object>();
+
+    private int[] numbers;
+
+    private transient String cached;
+
+    public GraphNode( String name ) {
+        this.name = name;
+        this.cached = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public GraphNode getNext() {
+        return next;
+    }
+
+    public void setNext( GraphNode next ) {
+        this.next = next;
+    }
+
+    public List<Object> getChildren() {
+        return children;
+    }
+
+    public int[] getNumbers() {
+        return numbers;
+    }
+
+    public void setNumbers( int[] numbers ) {
+        this.numbers = numbers;
+    }
+
+    public String getCached() {
+        return cached;
+    }
+
+    /**
+     * A node with its own serialization method, which can't be copied field by field.
+     */
+    public static class Custom extends GraphNode {
+
+        private static final long serialVersionUID = 1L;
+
+        public Custom( String name ) {
+            super( name );
+        }
+
+        private void writeObject( ObjectOutputStream out ) throws IOException {
+            out.defaultWriteObject();
+        }
+    }
+}
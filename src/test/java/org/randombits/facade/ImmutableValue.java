@@ -0,0 +1,41 @@
+package org.randombits.facade;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable value, which is rebuilt through its annotated constructor.
+ */
+public final class ImmutableValue {
+
+    private final String name;
+
+    private final int count;
+
+    private final boolean active;
+
+    private final ImmutableValue parent;
+
+    @ConstructorProperties({"name", "count", "active", "parent"})
+    public ImmutableValue( String name, int count, boolean active, ImmutableValue parent ) {
+        this.name = name;
+        this.count = count;
+        this.active = active;
+        this.parent = parent;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public ImmutableValue getParent() {
+        return parent;
+    }
+}
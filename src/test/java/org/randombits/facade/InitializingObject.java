@@ -0,0 +1,16 @@
+package org.randombits.facade;
+
+/**
+ * Records when it is initialized, by setting the system property named by
+ * {@link #initializedProperty(ClassLoader)} for its class loader.
+ */
+public class InitializingObject {
+
+    static {
+        System.setProperty( initializedProperty( InitializingObject.class.getClassLoader() ), "true" );
+    }
+
+    public static String initializedProperty( ClassLoader classLoader ) {
+        return InitializingObject.class.getName() + "." + System.identityHashCode( classLoader );
+    }
+}
@@ -0,0 +1,169 @@
+package org.randombits.facade;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that a copy of the library loaded by a plugin's class loader can be unloaded once
+ * the plugin is gone, after it has looked at classes from the host's class loader.
+ */
+public class LoaderUnloadTest {
+
+    private static final int GC_ATTEMPTS = 20;
+
+    /**
+     * Looks up the facade info for a host class with the plugin's copy of the assistant.
+     */
+    public static class FacadeInfoLookup implements Consumer<Object> {
+
+        public void accept( Object type ) {
+            try {
+                Class<?> hostClass = (Class<?>) type;
+                Class<?> hostInterface = hostClass.getInterfaces()[0];
+                FacadeAssistant.getInstance().findFacadeInfo( hostClass,
+                        new MethodSignature( hostClass.getMethod( "checkInterface", hostInterface ) ) );
+            } catch ( NoSuchMethodException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    }
+
+    /**
+     * Facades a host object into the plugin's class loader with the plugin's copy of the
+     * assistant.
+     */
+    public static class FacadeCreator implements Consumer<Object> {
+
+        public void accept( Object hostObject ) {
+            FacadeAssistant.getInstance().prepareObject( hostObject, getClass().getClassLoader() );
+        }
+    }
+
+    /**
+     * Facades a plugin object into the host's class loader with the plugin's copy of the
+     * assistant, which creates the host's copy of the invocation handler.
+     */
+    public static class HostFacadeCreator implements Consumer<Object> {
+
+        public void accept( Object hostLoader ) {
+            FacadeAssistant.getInstance().prepareObject( new FacadableObject(), (ClassLoader) hostLoader );
+        }
+    }
+
+    /**
+     * Converts a plugin enum constant to the host's copy of the enum with the plugin's copy of
+     * the assistant.
+     */
+    public static class HostEnumConverter implements Consumer<Object> {
+
+        public void accept( Object hostEnum ) {
+            Class<?> enumType = (Class<?>) hostEnum;
+            FacadeAssistant.getInstance().prepareObject( Direction.SOUTH, enumType, enumType.getClassLoader() );
+        }
+    }
+
+    /**
+     * Facades a host object into the plugin's class loader with the plugin's copy of the
+     * assistant, and calls it.
+     */
+    public static class FacadeCaller implements Consumer<Object> {
+
+        public void accept( Object hostObject ) {
+            FacadableInterface facade = FacadeAssistant.getInstance().prepareObject( hostObject,
+                    FacadableInterface.class, getClass().getClassLoader() );
+            facade.getValue();
+        }
+    }
+
+    /**
+     * Rebuilds, copies and translates host values with the plugin's copy of the library.
+     */
+    public static class ValueConverter implements Consumer<Object> {
+
+        public void accept( Object hostValues ) {
+            Object[] values = (Object[]) hostValues;
+            ClassLoader pluginLoader = getClass().getClassLoader();
+            try {
+                ValueType.forClass( values[0].getClass() );
+                new GraphCopyEngine().copy( values[1], pluginLoader );
+                ExceptionTranslator.translate( (Throwable) values[2], pluginLoader, FacadeAssistant.getInstance() );
+            } catch ( Exception e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    }
+
+    /**
+     * Caches a facade of a host object in the plugin's copy of the default cache.
+     */
+    public static class FacadeCacher implements Consumer<Object> {
+
+        public void accept( Object hostObject ) {
+            new ConcurrentFacadeCache().set( hostObject, new Object(), Object.class, getClass().getClassLoader() );
+        }
+    }
+
+    @Test
+    public void testFacadeInfoDoesNotPinPluginLoader() throws Exception {
+        assertUnloaded( runInPlugin( FacadeInfoLookup.class, FacadableObject.class ) );
+    }
+
+    @Test
+    public void testProxyClassDoesNotPinPluginLoader() throws Exception {
+        assertUnloaded( runInPlugin( FacadeCreator.class, new FacadableObject() ) );
+    }
+
+    @Test
+    public void testHandlerFactoryDoesNotPinPluginLoader() throws Exception {
+        assertUnloaded( runInPlugin( HostFacadeCreator.class, LoaderUnloadTest.class.getClassLoader() ) );
+    }
+
+    @Test
+    public void testEnumMappingDoesNotPinPluginLoader() throws Exception {
+        assertUnloaded( runInPlugin( HostEnumConverter.class, Direction.class ) );
+    }
+
+    @Test
+    public void testDispatchPlansDoNotPinPluginLoader() throws Exception {
+        assertUnloaded( runInPlugin( FacadeCaller.class, new FacadableObject( "Host" ) ) );
+    }
+
+    @Test
+    public void testValueCachesDoNotPinPluginLoader() throws Exception {
+        Object[] hostValues = { new ImmutableValue( "Host", 1, true, null ), new GraphNode( "Host" ),
+                new PluginException( "Host" ) };
+        assertUnloaded( runInPlugin( ValueConverter.class, hostValues ) );
+    }
+
+    @Test
+    public void testFacadeCacheDoesNotPinPluginLoader() throws Exception {
+        assertUnloaded( runInPlugin( FacadeCacher.class, new Object() ) );
+    }
+
+    /**
+     * Loads the helper into a new plugin class loader with its own copy of the library, and
+     * passes it the argument.
+     *
+     * @return A weak reference to the plugin class loader.
+     */
+    @SuppressWarnings("unchecked")
+    static WeakReference<ClassLoader> runInPlugin( Class<? extends Consumer<Object>> helper, Object argument )
+            throws Exception {
+        ClassLoader plugin = new IsolatedClassLoader().isolate( LoaderUnloadTest.class.getPackage() );
+        Consumer<Object> consumer = (Consumer<Object>) plugin.loadClass( helper.getName() ).newInstance();
+        consumer.accept( argument );
+        return new WeakReference<ClassLoader>( plugin );
+    }
+
+    static void assertUnloaded( WeakReference<ClassLoader> plugin ) throws InterruptedException {
+        for ( int i = 0; i < GC_ATTEMPTS && plugin.get() != null; i++ ) {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        assertNull( "The plugin class loader is still reachable", plugin.get() );
+    }
+}
@@ -0,0 +1,33 @@
+package org.randombits.facade;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+
+/**
+ * A value whose annotated constructor does not cover all of its state, so must be serialized.
+ */
+public class PartialValue implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+
+    private String note;
+
+    @ConstructorProperties({"id"})
+    public PartialValue( String id ) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getNote() {
+        return note;
+    }
+
+    public void setNote( String note ) {
+        this.note = note;
+    }
+}
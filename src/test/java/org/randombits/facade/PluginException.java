@@ -0,0 +1,17 @@
+package org.randombits.facade;
+
+/**
+ * An exception which only carries a message and a cause.
+ */
+public class PluginException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PluginException( String message ) {
+        super( message );
+    }
+
+    public PluginException( String message, Throwable cause ) {
+        super( message, cause );
+    }
+}
@@ -0,0 +1,28 @@
+package org.randombits.facade;
+
+import java.io.Serializable;
+
+/**
+ * A plain serializable value, which is neither shared nor facadable.
+ */
+public class SerializableValue implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Object value;
+
+    private final SerializableValue next;
+
+    public SerializableValue( Object value, SerializableValue next ) {
+        this.value = value;
+        this.next = next;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public SerializableValue getNext() {
+        return next;
+    }
+}
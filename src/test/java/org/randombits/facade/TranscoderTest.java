@@ -0,0 +1,95 @@
+package org.randombits.facade;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link Transcoder} support in {@link FacadeAssistant}.
+ */
+public class TranscoderTest {
+
+    /**
+     * Rebuilds {@link SerializableValue}s through their constructor, counting the calls.
+     */
+    private static class ValueTranscoder implements Transcoder {
+
+        private int count;
+
+        public Object transcode( Object sourceObject, Class<?> targetClass, FacadeAssistant assistant ) {
+            count++;
+            try {
+                SerializableValue value = (SerializableValue) sourceObject;
+                Constructor<?> constructor = targetClass.getConstructor( Object.class, targetClass );
+                return constructor.newInstance( assistant.prepareObject( value.getValue(), targetClass.getClassLoader() ),
+                        assistant.prepareObject( value.getNext(), targetClass.getClassLoader() ) );
+            } catch ( Exception e ) {
+                throw new FacadeException( e );
+            }
+        }
+    }
+
+    private FacadeAssistant facadeAssistant;
+
+    private ClassLoader classLoaderB;
+
+    @Before
+    public void setUp() {
+        facadeAssistant = new FacadeAssistant();
+        classLoaderB = new IsolatedClassLoader().isolate( TranscoderTest.class.getPackage() );
+    }
+
+    @Test
+    public void testTranscoder() throws Exception {
+        ValueTranscoder transcoder = new ValueTranscoder();
+        facadeAssistant.registerTranscoder( SerializableValue.class.getName(), transcoder );
+
+        SerializableValue value = new SerializableValue( "A", new SerializableValue( "B", null ) );
+        Object copy = facadeAssistant.prepareObject( value, classLoaderB );
+        assertSame( classLoaderB, copy.getClass().getClassLoader() );
+        assertEquals( "A", getValue( copy ) );
+        assertEquals( 2, transcoder.count );
+
+        assertSame( transcoder, facadeAssistant.unregisterTranscoder( SerializableValue.class.getName() ) );
+        copy = facadeAssistant.prepareObject( value, classLoaderB );
+        assertEquals( "A", getValue( copy ) );
+        assertEquals( 2, transcoder.count );
+    }
+
+    @Test
+    public void testUnregisteredTranscoderReleased() throws Exception {
+        ValueTranscoder transcoder = new ValueTranscoder();
+        facadeAssistant.registerTranscoder( SerializableValue.class.getName(), transcoder );
+        facadeAssistant.prepareObject( new SerializableValue( "A", null ), classLoaderB );
+        assertEquals( 1, transcoder.count );
+
+        // The binding for SerializableValue must not keep the transcoder once unregistered.
+        facadeAssistant.unregisterTranscoder( SerializableValue.class.getName() );
+        WeakReference<ValueTranscoder> reference = new WeakReference<ValueTranscoder>( transcoder );
+        transcoder = null;
+        for ( int i = 0; i < 50 && reference.get() != null; i++ ) {
+            System.gc();
+            Thread.sleep( 10 );
+        }
+        assertNull( reference.get() );
+    }
+
+    @Test
+    public void testSharedObjectsAreNotTranscoded() {
+        ValueTranscoder transcoder = new ValueTranscoder();
+        facadeAssistant.registerTranscoder( String.class.getName(), transcoder );
+
+        assertEquals( "A", facadeAssistant.prepareObject( "A", classLoaderB ) );
+        assertEquals( 0, transcoder.count );
+    }
+
+    private Object getValue( Object value ) throws Exception {
+        Method getValue = value.getClass().getMethod( "getValue" );
+        return getValue.invoke( value );
+    }
+}
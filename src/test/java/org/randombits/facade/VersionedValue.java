@@ -0,0 +1,24 @@
+package org.randombits.facade;
+
+import java.io.Serializable;
+
+/**
+ * A serializable value with a distinctive <code>serialVersionUID</code>, so that tests can load
+ * a copy with a different one.
+ */
+public class VersionedValue implements Serializable {
+
+    static final long SERIAL_VERSION_UID = 0x0123456789ABCDEFL;
+
+    private static final long serialVersionUID = SERIAL_VERSION_UID;
+
+    private final String name;
+
+    public VersionedValue( String name ) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+}